@@ -0,0 +1,99 @@
+package com.hmdp.jmh;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.*;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * CacheClient查询路径
+ * hit:redis中有数据 nullHit:redis中是空值 miss:每次查询前删除key,回源数据库(这里用内存对象代替)
+ * local=false时每次查询前清除本地缓存,测量redis往返和反序列化;local=true时测量本地缓存命中
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheClientBenchmark {
+
+    private static final String PASS_THROUGH_PREFIX = "bench:shop:pt:";
+    private static final String LOGICAL_PREFIX = "bench:shop:le:";
+    private static final long ID = 1L;
+
+    @Param({"hit", "nullHit", "miss"})
+    public String scenario;
+
+    @Param({"false", "true"})
+    public boolean local;
+
+    private RedisFixture redis;
+    private CacheClient cacheClient;
+    private Function<Long, Shop> dbFallback;
+
+    @Setup
+    public void setup() throws Exception {
+        redis = RedisFixture.start();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CacheRebuildExecutor rebuildExecutor = new CacheRebuildExecutor(registry, 2, 1000, false);
+        cacheClient = new CacheClient(redis.stringRedisTemplate(),
+                new CacheCodecs(CacheCodecs.BINARY),
+                redis.redissonClient(),
+                new BloomFilters(redis.stringRedisTemplate(), registry, 1000, 0.01, false),
+                rebuildExecutor,
+                new CacheRefreshAhead(rebuildExecutor, registry, 60000, 5, 10000),
+                new CacheMetrics(registry),
+                local ? 10000 : 0,
+                60);
+        Shop shop = shop();
+        dbFallback = "nullHit".equals(scenario) ? id -> null : id -> shop;
+        if (!"miss".equals(scenario)) {
+            //预先写入数据或空值
+            cacheClient.queryWithPassThrough(PASS_THROUGH_PREFIX, ID, Shop.class, dbFallback, 30L, TimeUnit.MINUTES);
+            cacheClient.queryWithLogicalExpire(LOGICAL_PREFIX, ID, Shop.class, dbFallback, 30L, TimeUnit.MINUTES);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void evict() {
+        if ("miss".equals(scenario)) {
+            cacheClient.delete(PASS_THROUGH_PREFIX + ID);
+            cacheClient.delete(LOGICAL_PREFIX + ID);
+        } else if (!local) {
+            //本地缓存容量为0时caffeine异步淘汰,手动删除保证每次都访问redis
+            cacheClient.evictLocal(PASS_THROUGH_PREFIX + ID);
+            cacheClient.evictLocal(LOGICAL_PREFIX + ID);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        redis.close();
+    }
+
+    @Benchmark
+    public Shop queryWithPassThrough() {
+        return cacheClient.queryWithPassThrough(PASS_THROUGH_PREFIX, ID, Shop.class, dbFallback, 30L, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public Shop queryWithLogicalExpire() {
+        return cacheClient.queryWithLogicalExpire(LOGICAL_PREFIX, ID, Shop.class, dbFallback, 30L, TimeUnit.MINUTES);
+    }
+
+    static Shop shop() {
+        return new Shop().setId(ID).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+}
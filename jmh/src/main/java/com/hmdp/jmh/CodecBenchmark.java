@@ -0,0 +1,134 @@
+package com.hmdp.jmh;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.BinaryCacheSchemas;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shop和RedisData(逻辑过期)的序列化:hutool、jackson、JsonCacheCodec、BinaryCacheCodec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+    private final BinaryCacheCodec binaryCodec = new BinaryCacheCodec().register(BinaryCacheSchemas.SHOP);
+
+    private Shop shop;
+    private RedisData redisData;
+    private long expireMillis;
+
+    private String hutoolShop;
+    private String hutoolRedisData;
+    private byte[] jacksonShop;
+    private byte[] jsonCodecShop;
+    private byte[] jsonCodecRedisData;
+    private byte[] binaryShop;
+    private byte[] binaryRedisData;
+
+    @Setup
+    public void setup() throws Exception {
+        shop = CacheClientBenchmark.shop();
+        redisData = RedisData.builder().data(shop).expireTime(LocalDateTime.now().plusMinutes(30)).build();
+        expireMillis = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(30);
+        hutoolShop = JSONUtil.toJsonStr(shop);
+        hutoolRedisData = JSONUtil.toJsonStr(redisData);
+        jacksonShop = objectMapper.writeValueAsBytes(shop);
+        jsonCodecShop = jsonCodec.encode(shop);
+        jsonCodecRedisData = jsonCodec.encodeWithExpire(shop, expireMillis);
+        binaryShop = binaryCodec.encode(shop);
+        binaryRedisData = binaryCodec.encodeWithExpire(shop, expireMillis);
+    }
+
+    @Benchmark
+    public byte[] shopEncodeHutool() {
+        return JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] shopEncodeJackson() throws Exception {
+        return objectMapper.writeValueAsBytes(shop);
+    }
+
+    @Benchmark
+    public byte[] shopEncodeJsonCodec() {
+        return jsonCodec.encode(shop);
+    }
+
+    @Benchmark
+    public byte[] shopEncodeBinary() {
+        return binaryCodec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop shopDecodeHutool() {
+        return JSONUtil.toBean(hutoolShop, Shop.class);
+    }
+
+    @Benchmark
+    public Shop shopDecodeJackson() throws Exception {
+        return objectMapper.readValue(jacksonShop, Shop.class);
+    }
+
+    @Benchmark
+    public Shop shopDecodeJsonCodec() {
+        return jsonCodec.decode(jsonCodecShop, Shop.class);
+    }
+
+    @Benchmark
+    public Shop shopDecodeBinary() {
+        return binaryCodec.decode(binaryShop, Shop.class);
+    }
+
+    @Benchmark
+    public byte[] redisDataEncodeHutool() {
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] redisDataEncodeJsonCodec() {
+        return jsonCodec.encodeWithExpire(shop, expireMillis);
+    }
+
+    @Benchmark
+    public byte[] redisDataEncodeBinary() {
+        return binaryCodec.encodeWithExpire(shop, expireMillis);
+    }
+
+    /**
+     * 原来ShopServiceImpl中的写法:先解析RedisData,再把data转换为Shop
+     */
+    @Benchmark
+    public Shop redisDataDecodeHutool() {
+        RedisData data = JSONUtil.toBean(hutoolRedisData, RedisData.class);
+        return JSONUtil.toBean((JSONObject) data.getData(), Shop.class);
+    }
+
+    @Benchmark
+    public Shop redisDataDecodeJsonCodec() {
+        jsonCodec.readExpire(jsonCodecRedisData);
+        return jsonCodec.decode(jsonCodecRedisData, Shop.class);
+    }
+
+    @Benchmark
+    public Shop redisDataDecodeBinary() {
+        binaryCodec.readExpire(binaryRedisData);
+        return binaryCodec.decode(binaryRedisData, Shop.class);
+    }
+}
@@ -0,0 +1,64 @@
+package com.hmdp.jmh;
+
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * id生成:redis逐个自增、号段模式、雪花算法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdGeneratorBenchmark {
+
+    @Param({"redis", "segment", "snowflake"})
+    public String strategy;
+
+    private RedisFixture redis;
+    private IdGenerator idGenerator;
+
+    @Setup
+    public void setup() throws Exception {
+        redis = RedisFixture.start();
+        switch (strategy) {
+            case "redis":
+                idGenerator = new RedisIdWorker(redis.stringRedisTemplate(), new SimpleMeterRegistry(), false, 1);
+                break;
+            case "segment":
+                idGenerator = new RedisIdWorker(redis.stringRedisTemplate(), new SimpleMeterRegistry(), true, 1000);
+                break;
+            default:
+                SnowflakeIdWorker snowflake = new SnowflakeIdWorker(redis.stringRedisTemplate(), 60, 10000, 5000, 100);
+                //没有spring容器,手动租用机器id
+                Method init = SnowflakeIdWorker.class.getDeclaredMethod("init");
+                init.setAccessible(true);
+                init.invoke(snowflake);
+                idGenerator = snowflake;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        redis.close();
+    }
+
+    @Benchmark
+    public Long nextId() {
+        return idGenerator.nextId("order");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Long nextIdContended() {
+        return idGenerator.nextId("order");
+    }
+}
@@ -0,0 +1,50 @@
+package com.hmdp.jmh;
+
+import com.hmdp.utils.SimpleRedisLock;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SimpleRedisLock一次加锁和释放
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockBenchmark {
+
+    private RedisFixture redis;
+
+    @Setup
+    public void setup() throws Exception {
+        redis = RedisFixture.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        redis.close();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadLock {
+        SimpleRedisLock lock;
+
+        @Setup
+        public void setup(LockBenchmark benchmark) {
+            //每个线程一把锁,只测量redis往返,不测量竞争
+            lock = new SimpleRedisLock("bench:" + Thread.currentThread().getId(), benchmark.redis.stringRedisTemplate());
+        }
+    }
+
+    @Benchmark
+    public boolean acquireAndRelease(ThreadLock state) {
+        boolean locked = state.lock.tryLock(10);
+        if (locked) {
+            state.lock.unlock();
+        }
+        return locked;
+    }
+}
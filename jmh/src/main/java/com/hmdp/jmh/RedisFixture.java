@@ -0,0 +1,65 @@
+package com.hmdp.jmh;
+
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * 内嵌redis及其客户端,每个基准测试类启动一个独立的redis进程
+ */
+public final class RedisFixture implements AutoCloseable {
+
+    private final int port;
+    private final RedisServer server;
+    private final LettuceConnectionFactory connectionFactory;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+
+    private RedisFixture(int port) throws IOException {
+        this.port = port;
+        this.server = new RedisServer(port);
+        this.server.start();
+        this.connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", port));
+        this.connectionFactory.afterPropertiesSet();
+        this.stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        Config config = new Config();
+        config.useSingleServer().setAddress("redis://127.0.0.1:" + port);
+        this.redissonClient = Redisson.create(config);
+    }
+
+    public static RedisFixture start() throws IOException {
+        return new RedisFixture(freePort());
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public StringRedisTemplate stringRedisTemplate() {
+        return stringRedisTemplate;
+    }
+
+    public RedissonClient redissonClient() {
+        return redissonClient;
+    }
+
+    @Override
+    public void close() throws IOException {
+        redissonClient.shutdown();
+        connectionFactory.destroy();
+        server.stop();
+    }
+}
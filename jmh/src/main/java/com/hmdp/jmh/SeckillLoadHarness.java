@@ -0,0 +1,268 @@
+package com.hmdp.jmh;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.HmDianPingApplication;
+import com.hmdp.dto.LoginFormDTO;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IUserService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillStockShards;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀端到端压测
+ * 启动内嵌redis和H2(MySQL兼容模式),以随机端口启动应用,创建一张秒杀券,
+ * 通过UserServiceImpl.login登录N个用户,每个用户并发请求/voucher-order/seckill/{id}若干次,
+ * 输出吞吐量和p50/p99/p999延迟,等待订单落库后校验没有超卖和重复下单
+ * 参数: --users=2000 --stock=500 --attempts=2 --concurrency=64 --drain-seconds=60,其余--hmdp.*参数传给应用
+ * 校验失败时进程以1退出,可以放到CI中跟踪
+ */
+public class SeckillLoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> appArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--hmdp.") || arg.startsWith("--spring.") || arg.startsWith("--logging.")) {
+                appArgs.add(arg);
+            } else if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        int users = Integer.parseInt(options.getOrDefault("users", "2000"));
+        int stock = Integer.parseInt(options.getOrDefault("stock", "500"));
+        int attempts = Integer.parseInt(options.getOrDefault("attempts", "2"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+        int drainSeconds = Integer.parseInt(options.getOrDefault("drain-seconds", "60"));
+
+        boolean passed;
+        try (RedisFixture redis = RedisFixture.start()) {
+            appArgs.add("--server.port=0");
+            appArgs.add("--spring.redis.host=127.0.0.1");
+            appArgs.add("--spring.redis.port=" + redis.port());
+            appArgs.add("--spring.datasource.driver-class-name=org.h2.Driver");
+            appArgs.add("--spring.datasource.url=jdbc:h2:mem:hmdp;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;NON_KEYWORDS=YEAR,MONTH");
+            appArgs.add("--spring.datasource.username=sa");
+            appArgs.add("--spring.datasource.password=");
+            appArgs.add("--spring.sql.init.mode=always");
+            appArgs.add("--spring.sql.init.schema-locations=classpath:load/schema.sql");
+            appArgs.add("--logging.level.com.hmdp=warn");
+            ServletWebServerApplicationContext context = (ServletWebServerApplicationContext)
+                    new SpringApplicationBuilder(HmDianPingApplication.class).run(appArgs.toArray(new String[0]));
+            try {
+                passed = run(context, users, stock, attempts, concurrency, drainSeconds);
+            } finally {
+                context.close();
+            }
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean run(ServletWebServerApplicationContext context, int users, int stock, int attempts,
+                               int concurrency, int drainSeconds) throws Exception {
+        IUserService userService = context.getBean(IUserService.class);
+        IVoucherService voucherService = context.getBean(IVoucherService.class);
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        ISeckillVoucherService seckillVoucherService = context.getBean(ISeckillVoucherService.class);
+        SeckillStockShards shards = context.getBean(SeckillStockShards.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        int port = context.getWebServer().getPort();
+
+        //创建秒杀券
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        Long voucherId = voucher.getId();
+
+        //登录用户
+        List<String> tokens = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            String phone = String.valueOf(13800000000L + i);
+            userService.sendCode(phone, null);
+            LoginFormDTO form = new LoginFormDTO();
+            form.setPhone(phone);
+            form.setCode(stringRedisTemplate.opsForValue().get(RedisConstants.LOGIN_CODE_KEY + phone));
+            Result result = userService.login(form, null);
+            tokens.add((String) result.getData());
+        }
+
+        //每个用户请求attempts次,打乱顺序,同一个用户的请求会并发到达
+        List<String> requests = new ArrayList<>(users * attempts);
+        for (int i = 0; i < attempts; i++) {
+            requests.addAll(tokens);
+        }
+        Collections.shuffle(requests);
+        long[] latencies = new long[requests.size()];
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong succeeded = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        URL url = new URL("http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId);
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch done = new CountDownLatch(concurrency);
+        long begin = System.nanoTime();
+        for (int t = 0; t < concurrency; t++) {
+            pool.submit(() -> {
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < latencies.length) {
+                        long start = System.nanoTime();
+                        try {
+                            JSONObject body = JSONUtil.parseObj(post(url, requests.get(i)));
+                            if (body.getBool("success", false)) {
+                                succeeded.incrementAndGet();
+                            } else {
+                                rejected.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        latencies[i] = System.nanoTime() - start;
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("requests=%d users=%d stock=%d concurrency=%d%n", latencies.length, users, stock, concurrency);
+        System.out.printf("throughput=%.1f req/s elapsed=%.2f s%n", latencies.length / (elapsed / 1e9), elapsed / 1e9);
+        System.out.printf("latency p50=%.2f ms p99=%.2f ms p999=%.2f ms max=%.2f ms%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                latencies[latencies.length - 1] / 1e6);
+        System.out.printf("succeeded=%d rejected=%d errors=%d%n", succeeded.get(), rejected.get(), errors.get());
+
+        //等待消费者组把订单写入数据库
+        long expected = succeeded.get();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(drainSeconds);
+        int saved = countOrders(voucherOrderService, voucherId);
+        while (saved < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+            saved = countOrders(voucherOrderService, voucherId);
+        }
+        long drainMillis = System.currentTimeMillis() - (deadline - TimeUnit.SECONDS.toMillis(drainSeconds));
+        System.out.printf("orders saved=%d drained in %d ms after load%n", saved, drainMillis);
+        printServerMetrics(context.getBean(MeterRegistry.class));
+
+        //校验
+        int k = shards.shardsOf(voucherId);
+        int distinctUsers = voucherOrderService.query().select("distinct user_id").eq("voucher_id", voucherId).count();
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        long redisOrdered = shards.orderedUsers(voucherId, k);
+        int redisStock = shards.remainingStock(voucherId, k);
+        boolean passed = true;
+        passed &= check("no oversell", expected <= stock, "succeeded=" + expected + " stock=" + stock);
+        passed &= check("sold out when demand exceeds stock", users < stock || expected == stock, "succeeded=" + expected);
+        passed &= check("all orders saved", saved == expected, "saved=" + saved + " succeeded=" + expected);
+        passed &= check("one order per user", distinctUsers == saved, "distinct users=" + distinctUsers + " orders=" + saved);
+        passed &= check("db stock", seckillVoucher.getStock() == stock - saved, "db stock=" + seckillVoucher.getStock() + " expected=" + (stock - saved));
+        passed &= check("redis order set", redisOrdered == expected, "seckill:order members=" + redisOrdered);
+        passed &= check("redis stock", redisStock == stock - expected, "redis stock=" + redisStock);
+        passed &= check("no request errors", errors.get() == 0, "errors=" + errors.get());
+        //登出后token立即失效
+        String token = tokens.get(0);
+        int before = status(new URL("http://127.0.0.1:" + port + "/user/me"), "GET", token);
+        status(new URL("http://127.0.0.1:" + port + "/user/logout"), "POST", token);
+        int after = status(new URL("http://127.0.0.1:" + port + "/user/me"), "GET", token);
+        passed &= check("logout revokes token", before == 200 && after == 401, "before=" + before + " after=" + after);
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    /**
+     * 应用内部的指标,与/actuator/prometheus暴露的相同
+     */
+    private static void printServerMetrics(MeterRegistry registry) {
+        Timer seckill = registry.find("http.server.requests").tag("uri", "/voucher-order/seckill/{id}").timer();
+        if (seckill != null) {
+            System.out.printf("server seckill mean=%.2f ms max=%.2f ms%n",
+                    seckill.mean(TimeUnit.MILLISECONDS), seckill.max(TimeUnit.MILLISECONDS));
+        }
+        Timer queue = registry.find("order.stream.latency").timer();
+        if (queue != null) {
+            System.out.printf("order stream drained=%d latency mean=%.2f ms max=%.2f ms%n",
+                    queue.count(), queue.mean(TimeUnit.MILLISECONDS), queue.max(TimeUnit.MILLISECONDS));
+        }
+        for (String command : new String[]{"EVALSHA", "XREADGROUP", "XACK", "HGETALL", "EXPIRE"}) {
+            Timer redis = registry.find("lettuce.command.completion").tag("command", command).timer();
+            if (redis != null) {
+                System.out.printf("redis %s count=%d mean=%.3f ms%n",
+                        command, redis.count(), redis.mean(TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    private static int countOrders(IVoucherOrderService voucherOrderService, Long voucherId) {
+        return voucherOrderService.query().eq("voucher_id", voucherId).count();
+    }
+
+    private static boolean check(String name, boolean ok, String detail) {
+        System.out.printf("[%s] %s: %s%n", ok ? "OK" : "FAIL", name, detail);
+        return ok;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static int status(URL url, String method, String token) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("authorization", token);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String post(URL url, String token) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("authorization", token);
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(30000);
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
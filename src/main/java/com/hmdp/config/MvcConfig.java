@@ -1,17 +1,17 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.TokenManager;
 import com.hmdp.utils.refreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    private TokenManager tokenManager;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -21,7 +21,8 @@ public class MvcConfig implements WebMvcConfigurer {
                 "/upload/**",
                 "/blog/hot",
                 "/user/code",
-                "/user/login").order(1);
-        registry.addInterceptor(new refreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+                "/user/login",
+                "/actuator/**").order(1);
+        registry.addInterceptor(new refreshTokenInterceptor(tokenManager)).addPathPatterns("/**").order(0);
     }
 }
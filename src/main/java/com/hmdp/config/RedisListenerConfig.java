@@ -0,0 +1,57 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.BloomFilters;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOut;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.TokenManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * redis发布订阅监听
+ */
+@Configuration
+public class RedisListenerConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       CacheClient cacheClient,
+                                                                       BloomFilters bloomFilters,
+                                                                       SeckillSoldOut seckillSoldOut,
+                                                                       SeckillStockShards seckillStockShards,
+                                                                       TokenManager tokenManager) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //缓存失效消息,消息体为被删除的key,收到后删除本节点的本地缓存
+        container.addMessageListener((message, pattern) ->
+                        cacheClient.evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        //布隆过滤器新增消息,更新本节点的本地副本
+        container.addMessageListener((message, pattern) ->
+                        bloomFilters.onRemoteAdd(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.BLOOM_ADD_CHANNEL));
+        //秒杀券售罄消息,消息体为优惠券id
+        container.addMessageListener((message, pattern) ->
+                        seckillSoldOut.onRemoteSoldOut(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+        //秒杀券对账结束消息,消息体为优惠券id,清除售罄标记和缓存的分片数
+        container.addMessageListener((message, pattern) -> {
+                    String voucherId = new String(message.getBody(), StandardCharsets.UTF_8);
+                    seckillSoldOut.onRemoteClear(voucherId);
+                    seckillStockShards.evictLocal(Long.valueOf(voucherId));
+                },
+                new ChannelTopic(RedisConstants.SECKILL_CLEAR_CHANNEL));
+        //登录用户失效消息,消息体为token
+        container.addMessageListener((message, pattern) ->
+                        tokenManager.onRemoteRevoke(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.LOGIN_INVALIDATE_CHANNEL));
+        return container;
+    }
+}
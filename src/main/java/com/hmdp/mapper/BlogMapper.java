@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,19 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    /**
+     * 一条UPDATE批量累加点赞数
+     * @param deltas 笔记id到点赞数增量
+     */
+    int addLikedBatch(@Param("deltas") Map<Long, Integer> deltas);
+
+    /**
+     * 锁住并读取最后一次写回的增量快照标识,没有记录时返回null
+     */
+    String selectLikeFlushSnapshot();
+
+    /**
+     * 记录最后一次写回的增量快照标识
+     */
+    int upsertLikeFlushSnapshot(@Param("snapshot") String snapshot);
 }
@@ -0,0 +1,34 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Sign;
+
+import java.time.YearMonth;
+
+/**
+ * <p>
+ *  服务类
+ * </p>
+ */
+public interface ISignService extends IService<Sign> {
+
+    /**
+     * 当前用户今天签到
+     * @return 无
+     */
+    Result sign();
+
+    /**
+     * 当前用户截至今天的连续签到天数,今天还没有签到时统计到昨天
+     * @return 连续签到天数
+     */
+    Result signCount();
+
+    /**
+     * 把某个月所有用户的签到bitmap归档到tb_sign,并给bitmap设置过期时间
+     * @param month 月份,只能归档已经结束的月份
+     * @return 归档的用户数
+     */
+    int compactMonth(YearMonth month);
+}
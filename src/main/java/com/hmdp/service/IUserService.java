@@ -32,4 +32,11 @@ public interface IUserService extends IService<User> {
      * @return
      */
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    /**
+     * 登出,删除token并通知所有节点删除本地缓存的登录用户
+     * @param token 请求头中的token
+     * @return
+     */
+    Result logout(String token);
 }
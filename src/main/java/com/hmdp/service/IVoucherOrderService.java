@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,11 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    /**
+     * 批量保存同一张优惠券的秒杀订单,重复投递的订单会被跳过
+     * @param voucherId 优惠券id
+     * @param voucherOrders 订单
+     * @return 订单id已经被其他订单占用、没有保存的订单id,由调用方转入死信队列
+     */
+    List<Long> createVoucherOrders(Long voucherId, List<VoucherOrder> voucherOrders);
 }
@@ -1,6 +1,7 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -8,27 +9,45 @@ import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
 import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BlogHotRank;
+import com.hmdp.utils.BloomFilters;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.FeedFanout;
+import com.hmdp.utils.FeedTimeline;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -39,59 +58,183 @@ import java.util.stream.Collectors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
     @Resource
     private IUserService userService;
 
     @Resource
-    private IFollowService followService;
+    private FeedFanout feedFanout;
+
+    @Resource
+    private FeedTimeline feedTimeline;
+
+    @Resource
+    private BlogHotRank blogHotRank;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private BloomFilters bloomFilters;
+
+    //通过代理调用,事务才会生效
+    @Lazy
+    @Resource
+    private IBlogService proxy;
+
+    //每批写回的笔记数
+    @Value("${hmdp.blog.like.flush-batch-size:500}")
+    private int likeFlushBatchSize;
+
+    //写回锁的过期时间,节点宕机后最多这么久由其他节点接手
+    @Value("${hmdp.blog.like.flush-lock-seconds:60}")
+    private long likeFlushLockSeconds;
+
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    static{
+        LIKE_SCRIPT=new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<String> LIKE_FLUSH_SCRIPT;
+    static{
+        LIKE_FLUSH_SCRIPT=new DefaultRedisScript<>();
+        LIKE_FLUSH_SCRIPT.setLocation(new ClassPathResource("like_flush.lua"));
+        LIKE_FLUSH_SCRIPT.setResultType(String.class);
+    }
+
+    //快照中记录快照标识的field,其余field为笔记id
+    private static final String LIKE_SNAPSHOT_FIELD = "#snapshot";
+
     @Override
     public Result queryBlogById(Long id) {
+        //布隆过滤器判断笔记一定不存在
+        if (!bloomFilters.get(BloomFilters.BLOG).mightContain(id)) {
+            return Result.fail("笔记不存在");
+        }
         Blog blog = getById(id);
         if (blog==null) {
             return Result.fail("笔记不存在");
         }
-        queryBlogUser(blog);
-        isBlogLiked(blog);
+        hydrateBlogs(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
     @Override
     public Result likeBlog(Long id) {
+        if (!bloomFilters.get(BloomFilters.BLOG).mightContain(id)) {
+            return Result.fail("笔记不存在");
+        }
         Long userId = UserHolder.getUser().getId();
-        //判断当前登录用户是否已经点赞
-        String key = RedisConstants.BLOG_LIKED_KEY + id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if(score==null){
-            //之前没点赞,现在数据库点赞数加一
-            boolean isSuccess = update().setSql("liked=liked+1").eq("id", id).update();
-            if(isSuccess){
-                stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
+        //一次脚本完成点赞/取消点赞和热门排行计分,数据库中的点赞数由flushLikes异步写回
+        List<String> keys = new ArrayList<>(4);
+        keys.add(RedisConstants.BLOG_LIKED_KEY + id);
+        keys.add(RedisConstants.BLOG_LIKE_DELTA_KEY);
+        keys.addAll(blogHotRank.keys());
+        stringRedisTemplate.execute(LIKE_SCRIPT, keys,
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString(), String.valueOf(blogHotRank.halfLifeMillis()));
+        return Result.ok();
+    }
+
+    /**
+     * 把点赞数增量写回tb_blog,集群内同一时间只有一个节点执行
+     * 1.like_flush.lua把blog:like:delta改名为带标识的快照,之后的点赞累计到新的增量中
+     * 2.同一个事务中按增量更新点赞数并记录快照标识,tb_blog_like_flush中已经是这个标识说明已经写过
+     * 3.写库成功后删除快照;中途失败时下一次继续写回同一个快照,不会重复累加,也不会覆盖不在点赞集合中的点赞数
+     */
+    @Scheduled(fixedDelayString = "${hmdp.blog.like.flush-millis:1000}")
+    public void flushLikes() {
+        SimpleRedisLock lock = SimpleRedisLock.ofKey(RedisConstants.LOCK_BLOG_LIKE_FLUSH_KEY, stringRedisTemplate);
+        if (!lock.tryLock(likeFlushLockSeconds)) {
+            return;
+        }
+        try {
+            String snapshot = stringRedisTemplate.execute(LIKE_FLUSH_SCRIPT,
+                    Arrays.asList(RedisConstants.BLOG_LIKE_DELTA_KEY, RedisConstants.BLOG_LIKE_FLUSHING_KEY),
+                    UUID.randomUUID().toString(true));
+            if (snapshot == null) {
+                return;
             }
-        }else{
-            //之前点过赞了,现在数据库点赞数减一
-            boolean isSuccess = update().setSql("liked=liked-1").eq("id", id).update();
-            if(isSuccess){
-                stringRedisTemplate.opsForZSet().remove(key,userId.toString());
+            Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(RedisConstants.BLOG_LIKE_FLUSHING_KEY);
+            Map<Long, Integer> deltas = new HashMap<>(entries.size());
+            entries.forEach((field, value) -> {
+                if (LIKE_SNAPSHOT_FIELD.equals(field)) {
+                    return;
+                }
+                int delta = Integer.parseInt(value.toString());
+                if (delta != 0) {
+                    deltas.put(Long.valueOf(field.toString()), delta);
+                }
+            });
+            int count = proxy.applyLikeDeltas(snapshot, deltas);
+            stringRedisTemplate.delete(RedisConstants.BLOG_LIKE_FLUSHING_KEY);
+            if (count > 0) {
+                log.debug("写回{}篇笔记的点赞数", count);
             }
+        } catch (Exception e) {
+            log.error("写回点赞数失败:", e);
+        } finally {
+            lock.unlock();
         }
-        return Result.ok();
     }
 
-    private void isBlogLiked(Blog blog){
+    /**
+     * 在一个事务中写回一个快照的点赞数增量,每批一条UPDATE
+     * @return 写回的笔记数,快照已经写过时返回0
+     */
+    @Override
+    @Transactional
+    public int applyLikeDeltas(String snapshot, Map<Long, Integer> deltas) {
+        //锁住记录行,与同一快照的重复写回串行
+        if (snapshot.equals(baseMapper.selectLikeFlushSnapshot())) {
+            return 0;
+        }
+        List<Long> ids = new ArrayList<>(deltas.keySet());
+        for (int from = 0; from < ids.size(); from += likeFlushBatchSize) {
+            Map<Long, Integer> batch = new HashMap<>();
+            for (Long id : ids.subList(from, Math.min(from + likeFlushBatchSize, ids.size()))) {
+                batch.put(id, deltas.get(id));
+            }
+            baseMapper.addLikedBatch(batch);
+        }
+        baseMapper.upsertLikeFlushSnapshot(snapshot);
+        return ids.size();
+    }
+
+    /**
+     * 填充笔记列表的作者和当前用户是否点赞,一页笔记只访问两次缓存:
+     * 1.作者一次批量缓存查询
+     * 2.点赞状态一次管道ZSCORE(每篇笔记是不同的key,ZMSCORE只能查同一个key的多个成员)
+     */
+    private void hydrateBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        queryBlogUsers(blogs);
+        isBlogsLiked(blogs);
+    }
+
+    private void isBlogsLiked(List<Blog> blogs) {
         UserDTO user = UserHolder.getUser();
-        if(user==null){
+        if (user == null) {
             return;
         }
-        Long userId = user.getId();
-        String key=RedisConstants.BLOG_LIKED_KEY+blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score!=null);
+        byte[] member = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                connection.zSetCommands().zScore((RedisConstants.BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
     }
 
     @Override
@@ -122,48 +265,82 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if(!isSuccess){
             return Result.fail("笔记保存失败");
         }
-        //看看有多少用户(粉丝的userId)追随了自己(followUserId)
-        List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
-        for(Follow follow:follows){
-            //获取粉丝id
-            Long userId = follow.getUserId();
-            //推送到粉丝的redis中
-            String key=RedisConstants.FEED_KEY+userId;
-            stringRedisTemplate.opsForZSet().add(key,blog.getId().toString(),System.currentTimeMillis());
-        }
+        bloomFilters.add(BloomFilters.BLOG, blog.getId());
+        long now = System.currentTimeMillis();
+        blogHotRank.add(blog.getId(), now);
+        //推送到粉丝的收件箱由后台完成,粉丝很多时也不阻塞请求
+        feedFanout.submit(user.getId(), blog.getId(), now);
         return Result.ok(blog.getId());
     }
 
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        });
+        List<Blog> records;
+        if (blogHotRank.exists()) {
+            // 从热门排行取当前页的id,再从缓存批量获取笔记
+            records = queryBlogsByIds(blogHotRank.page(current, SystemConstants.MAX_PAGE_SIZE));
+        } else {
+            // 排行还没有导入完成,按点赞数查数据库
+            records = query()
+                    .orderByDesc("liked")
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE))
+                    .getRecords();
+        }
+        // 批量查询作者和点赞状态
+        hydrateBlogs(records);
         return Result.ok(records);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    /**
+     * 按id的顺序批量从缓存获取笔记,未命中的一次性查数据库,已删除的笔记跳过
+     * 缓存中的对象会被其他请求共享,复制后再填充作者和点赞状态
+     */
+    private List<Blog> queryBlogsByIds(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, Blog> blogs = cacheClient.queryBatchWithPassThrough(RedisConstants.CACHE_BLOG_KEY, ids, Blog.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, blog -> blog)),
+                RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        List<Blog> result = new ArrayList<>(blogs.size());
+        for (Long id : ids) {
+            Blog blog = blogs.get(id);
+            if (blog != null) {
+                Blog copy = new Blog();
+                BeanUtils.copyProperties(blog, copy);
+                result.add(copy);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量查询笔记的作者,一次缓存批量查询代替逐条getById
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = cacheClient.queryBatchWithPassThrough(RedisConstants.CACHE_USER_KEY, userIds, UserDTO.class,
+                this::queryUserDTOs, RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
+    private Map<Long, UserDTO> queryUserDTOs(List<Long> ids) {
+        return userService.listByIds(ids).stream()
+                .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class)));
     }
 
     @Override
     public Result queryBlogOfFollow(Long max, Integer offset) {
         //获取当前用户
         Long userId = UserHolder.getUser().getId();
-        //根据当前用户id查询redis中的收件箱
-        String key=RedisConstants.FEED_KEY+userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(key, 0, max, offset, 2);
+        //查询redis中的收件箱,以及关注的大V的发件箱
+        List<ZSetOperations.TypedTuple<String>> typedTuples = feedTimeline.scroll(userId, max, offset, 2);
         //非空判断
         if(typedTuples==null||typedTuples.isEmpty()){
             return Result.ok();
@@ -186,12 +363,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         //根据id查询blog
         String idStr = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for(Blog blog:blogs){
-            //查询blog有关的用户
-            queryBlogUser(blog);
-            //查询blog是否被点赞
-            isBlogLiked(blog);
-        }
+        //批量查询blog的作者和点赞状态
+        hydrateBlogs(blogs);
 
         //封装并返回
         ScrollResult r = new ScrollResult();
@@ -9,6 +9,7 @@ import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -42,7 +43,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         //关注新增,没关注删除
         //不但把数据保存到数据库中,也保存到redis中
         Long userId = UserHolder.getUser().getId();
-        String key="follows:"+userId;
+        String key=RedisConstants.FOLLOWS_KEY+userId;
         //判断是否关注
         if(isFollow){
             Follow follow = new Follow();
@@ -75,9 +76,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     public Result followCommons(Long followUserId) {
         Long userId = UserHolder.getUser().getId();
         //登录用户关注了哪些人都放在了redis中
-        String key="follows:"+userId;
+        String key=RedisConstants.FOLLOWS_KEY+userId;
         //求登录者和当前博主(被登录者关注的)的共同关注(交集)
-        String key2="follows:"+followUserId;
+        String key2=RedisConstants.FOLLOWS_KEY+followUserId;
         Set<String> intersect = stringRedisTemplate.opsForSet().intersect(key, key2);
         if(intersect==null||intersect.isEmpty()){
             return Result.ok(Collections.emptyList());
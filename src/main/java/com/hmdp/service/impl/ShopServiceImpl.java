@@ -1,29 +1,34 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilters;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -33,16 +38,30 @@ import java.util.concurrent.TimeUnit;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
-    @Autowired
-    private StringRedisTemplate stringRedisTemplate;
-
     @Resource
     private CacheClient cacheClient;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR= Executors.newFixedThreadPool(10);
+    @Resource
+    private BloomFilters bloomFilters;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Value("${hmdp.cache.warm-up.shop-size:100}")
+    private int warmUpSize;
+
+    @Value("${hmdp.shop.geo.load-on-startup:true}")
+    private boolean geoLoadOnStartup;
+
+    @Value("${hmdp.shop.geo.load-batch-size:1000}")
+    private int geoLoadBatchSize;
+
+    @Value("${hmdp.shop.geo.default-radius-meters:5000}")
+    private double defaultRadius;
 
     /**
      * 根据商铺id查询商铺信息
@@ -62,134 +81,96 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-    //需要在测试类中使用到这个函数插入预热数据
-    public void saveShop2Redis(Long id,Long expireSecond){
-        Shop shop = getById(id);
-        RedisData redisData = RedisData.builder().
-                expireTime(LocalDateTime.now().plusSeconds(expireSecond)).
-                data(shop).
-                build();
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisData));
+    /**
+     * 启动时预热销量最高的商铺,之后由提前刷新维持热点数据
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpOnStartup(){
+        try {
+            warmUpHotShops(warmUpSize);
+        } catch (Exception e) {
+            //预热失败不影响启动,数据在第一次访问时加载
+            log.error("预热商铺缓存失败",e);
+        }
     }
 
-    //逻辑过期解决缓存击穿(前提保证redis中存在预热数据)
-    private Shop queryWithLogicalExpire(Long id){
-        String key=RedisConstants.CACHE_SHOP_KEY+id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isBlank(shopJson)){//不在redis中,不是活动商铺
-            return null;
+    /**
+     * 启动时把商铺坐标导入GEO索引,GEOADD是幂等的,重复导入只会更新坐标
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadGeoOnStartup(){
+        if(!geoLoadOnStartup){
+            return;
+        }
+        try {
+            loadShopGeo();
+        } catch (Exception e) {
+            log.error("导入商铺坐标失败",e);
         }
+    }
 
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject jsonData = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(jsonData, Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //未过期
-            return shop;
+    /**
+     * 按id分批读取商铺坐标,每批一次管道写入shop:geo:{typeId}
+     * @return 导入的商铺数量
+     */
+    public int loadShopGeo(){
+        long lastId = 0;
+        int total = 0;
+        while (true) {
+            List<Shop> shops = query().select("id", "type_id", "x", "y")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + geoLoadBatchSize)
+                    .list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            shopGeoIndex.addAll(shops);
+            total += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
         }
+        log.info("导入商铺坐标{}条",total);
+        return total;
+    }
 
-        String lockKey=RedisConstants.LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        if(isLock){
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    this.saveShop2Redis(id,20L);
-                }catch (Exception e){
-                    throw new RuntimeException(e);
-                }finally {
-                    unlock(lockKey);
-                }
-            });
+    /**
+     * 把销量最高的n个商铺以逻辑过期的方式写入redis
+     * @param n 预热数量
+     * @return 实际预热数量
+     */
+    public int warmUpHotShops(int n){
+        if(n<=0){
+            return 0;
         }
-        return shop;
+        List<Shop> shops = query().orderByDesc("sold").last("limit " + n).list();
+        for (Shop shop : shops) {
+            cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY+shop.getId(),shop,RedisConstants.CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        }
+        log.info("预热商铺缓存{}条",shops.size());
+        return shops.size();
+    }
+
+    //逻辑过期解决缓存击穿(未预热的数据在第一次访问时加载)
+    private Shop queryWithLogicalExpire(Long id){
+        return cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     //互斥锁解决缓存穿透
     /**
      * 理清逻辑:这个函数既解决了缓存穿透(攻击)又解决了热点击穿的问题
      * 先从redis中查,查到了,返回shop说明真的有,返回null说明数据库没有,空值写入reids防止穿透攻击
-     * 如果redis没有,就要拿到锁,防止同一大量的key来访问数据库,只要一个线程访问即可
-     * 没有拿到的线程睡眠等待,从数据库拿到的,不管是null还是shop都写入redis
+     * 如果redis没有,本节点内合并并发请求,再由分布式锁保证整个集群只有一个线程访问数据库
+     * 其余线程等待同一个加载结果,不需要睡眠重试
      * @param id
      * @return
      */
     private Shop queryWithMutex(Long id){
-        String key= RedisConstants.CACHE_SHOP_KEY+id;
-        //从redis中查
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //命中返回
-        if(StrUtil.isNotBlank(shopJson)){
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        if(shopJson!=null){//说明是空串,不能用equals,会爆空指针异常
-            return null;
-        }
-        //没命中查数据库,这里要解决缓存击穿问题
-        String lockKey=RedisConstants.LOCK_SHOP_KEY+id;
-        Shop shop = null;
-        try {
-            boolean flag = tryLock(lockKey);
-            if(flag==false){//没有拿到锁
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
-            shop = getById(id);
-            //Thread.sleep(200);
-            //数据库没查到,返回404
-            if(shop==null){
-                //将空值写入redis
-                stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return null;
-            }
-            //数据库查到了,写入redis,返回数据
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            //释放锁
-            unlock(lockKey);
-        }
-
-        return shop;
+        return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-    //设置空值来防止缓存穿透
+    //设置空值来防止缓存穿透,缓存的编码格式由CacheClient处理
     private Shop queryWithPassThrough(Long id){
-        String key= RedisConstants.CACHE_SHOP_KEY+id;
-        //从redis中查
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //命中返回
-        if(StrUtil.isNotBlank(shopJson)){
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        if(shopJson!=null){//说明是空串,不能用equals,会爆空指针异常
-            return null;
-        }
-        //没命中查数据库
-        Shop shop = getById(id);
-        //数据库没查到,返回404
-        if(shop==null){
-            //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
-            return null;
-        }
-        //数据库查到了,写入redis,返回数据
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        return shop;
-    }
-
-    private boolean tryLock(String key){
-        //如果这个锁不存在就设置这个锁,存在就设置不了
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.MILLISECONDS);
-        return BooleanUtil.isTrue(flag);//防止包装类返回null
-    }
-
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+        return cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     @Override
@@ -199,10 +180,95 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if(id==null){
             return Result.fail("店铺ID不能为NULL");
         }
+        Shop old = getById(id);
+        if(old==null){
+            return Result.fail("店铺不存在");
+        }
         //更新数据库
         updateById(shop);
-        //删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY+id);
+        //删除缓存,并通知所有节点删除本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY+id);
+        //类型或坐标变更时更新GEO索引
+        Shop current = getById(id);
+        if(!Objects.equals(old.getTypeId(),current.getTypeId())&&old.getTypeId()!=null){
+            shopGeoIndex.remove(old.getTypeId(),id);
+        }
+        if(!Objects.equals(old.getTypeId(),current.getTypeId())
+                ||!Objects.equals(old.getX(),current.getX())||!Objects.equals(old.getY(),current.getY())){
+            shopGeoIndex.addAll(Collections.singletonList(current));
+        }
         return Result.ok();
     }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 加入布隆过滤器
+        bloomFilters.add(BloomFilters.SHOP, shop.getId());
+        // 加入GEO索引
+        shopGeoIndex.addAll(Collections.singletonList(shop));
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y, Double radius) {
+        if(x!=null&&y!=null){
+            return Result.ok(queryShopByDistance(typeId, current, x, y, radius==null?defaultRadius:radius));
+        }
+        // 根据类型分页查询,只查id
+        Page<Shop> page = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        // 从缓存批量获取商铺详情
+        return Result.ok(queryShopsByIds(page.getRecords()));
+    }
+
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        // 根据名称分页查询,只查id
+        Page<Shop> page = query()
+                .select("id")
+                .like(StrUtil.isNotBlank(name), "name", name)
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+        // 从缓存批量获取商铺详情
+        return Result.ok(queryShopsByIds(page.getRecords()));
+    }
+
+    /**
+     * 按距离分页查询,GEOSEARCH得到当前页的id和距离,再从缓存批量获取商铺详情
+     */
+    private List<Shop> queryShopByDistance(Integer typeId, Integer current, double x, double y, double radius) {
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        Map<Long, Double> distances = shopGeoIndex.search(typeId.longValue(), x, y, radius, from, SystemConstants.DEFAULT_PAGE_SIZE);
+        if (distances.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, Shop> shops = queryShopMapByIds(new ArrayList<>(distances.keySet()));
+        List<Shop> result = new ArrayList<>(shops.size());
+        shops.forEach((id, shop) -> {
+            //缓存中的对象会被其他请求共享,复制后再设置距离
+            Shop copy = new Shop();
+            BeanUtils.copyProperties(shop, copy);
+            copy.setDistance(distances.get(id));
+            result.add(copy);
+        });
+        return result;
+    }
+
+    /**
+     * 批量从缓存获取商铺,未命中的一次性查数据库
+     */
+    private List<Shop> queryShopsByIds(List<Shop> records) {
+        List<Long> ids = records.stream().map(Shop::getId).collect(Collectors.toList());
+        return new ArrayList<>(queryShopMapByIds(ids).values());
+    }
+
+    private Map<Long, Shop> queryShopMapByIds(List<Long> ids) {
+        return cacheClient.queryBatchWithPassThrough(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
 }
@@ -0,0 +1,262 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Sign;
+import com.hmdp.mapper.SignMapper;
+import com.hmdp.service.ISignService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * 签到服务
+ * 每个用户每月一个bitmap sign:{userId}:{yyyyMM},第n天签到把第n-1位置为1,签到只需要一次SETBIT
+ * 月份结束后由定时任务归档到tb_sign(每个用户每月一行),bitmap保留一段时间后过期
+ * </p>
+ */
+@Slf4j
+@Service
+public class SignServiceImpl extends ServiceImpl<SignMapper, Sign> implements ISignService {
+
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //归档后bitmap继续保留的天数,跨月的连续签到在这段时间内仍然只查redis
+    @Value("${hmdp.sign.retain-days:35}")
+    private long retainDays;
+
+    //每批归档的用户数
+    @Value("${hmdp.sign.compact-batch-size:500}")
+    private int compactBatchSize;
+
+    //连续签到最多向前统计的月数
+    @Value("${hmdp.sign.max-streak-months:24}")
+    private int maxStreakMonths;
+
+    private static String key(Long userId, YearMonth month) {
+        return RedisConstants.USER_SIGN_KEY + userId + ":" + month.format(MONTH_FORMATTER);
+    }
+
+    @Override
+    public Result sign() {
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        //SETBIT sign:{userId}:{yyyyMM} dayOfMonth-1 1
+        stringRedisTemplate.opsForValue().setBit(key(userId, YearMonth.from(today)), today.getDayOfMonth() - 1, true);
+        return Result.ok();
+    }
+
+    @Override
+    public Result signCount() {
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        YearMonth current = YearMonth.from(today);
+        int count = streak(today, maxStreakMonths, (month, days) -> month.equals(current)
+                ? currentMonthBits(userId, month, days)
+                : pastMonthBits(userId, month, days));
+        return Result.ok(count);
+    }
+
+    /**
+     * 某月1号到days号的签到记录,最低位是days号
+     */
+    interface MonthBits {
+        long get(YearMonth month, int days);
+    }
+
+    /**
+     * 截止到今天的连续签到天数,今天还没有签到时截止到昨天
+     * 本月到今天全部签到时继续统计上个月,最多向前maxMonths个月
+     */
+    static int streak(LocalDate today, int maxMonths, MonthBits monthBits) {
+        YearMonth month = YearMonth.from(today);
+        int days = today.getDayOfMonth();
+        //最低位是今天
+        long bits = monthBits.get(month, days);
+        if ((bits & 1) == 0) {
+            //今天还没有签到,连续记录保持到昨天
+            bits >>>= 1;
+            days--;
+        }
+        int count = 0;
+        for (int i = 0; i <= maxMonths; i++) {
+            //从最低位开始连续的1的个数
+            int run = Math.min(Long.numberOfTrailingZeros(~bits), days);
+            count += run;
+            if (run < days) {
+                break;
+            }
+            //本月到今天全部签到,继续统计上个月
+            month = month.minusMonths(1);
+            days = month.lengthOfMonth();
+            bits = monthBits.get(month, days);
+        }
+        return count;
+    }
+
+    /**
+     * 当月1号到days号的签到记录,最低位是days号
+     * BITFIELD sign:{userId}:{yyyyMM} GET u{days} 0
+     */
+    private long currentMonthBits(Long userId, YearMonth month, int days) {
+        if (days == 0) {
+            return 0;
+        }
+        List<Long> result = stringRedisTemplate.opsForValue().bitField(key(userId, month),
+                BitFieldSubCommands.create().get(BitFieldSubCommands.BitFieldType.unsigned(days)).valueAt(0));
+        return result == null || result.isEmpty() || result.get(0) == null ? 0 : result.get(0);
+    }
+
+    /**
+     * 已经结束的月份,bitmap还在redis中时查redis,已过期时查归档
+     */
+    private long pastMonthBits(Long userId, YearMonth month, int days) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key(userId, month)))) {
+            return currentMonthBits(userId, month, days);
+        }
+        Sign sign = query().eq("user_id", userId).eq("year", month.getYear()).eq("month", month.getMonthValue()).one();
+        if (sign == null || sign.getSignBits() == null) {
+            return 0;
+        }
+        return archivedToMonthBits(sign.getSignBits(), days);
+    }
+
+    /**
+     * 归档的最低位是1号,反转后最低位是月末,与BITFIELD GET u{days} 0的结果一致
+     */
+    static long archivedToMonthBits(int signBits, int days) {
+        return Integer.toUnsignedLong(Integer.reverse(signBits)) >>> (32 - days);
+    }
+
+    /**
+     * 每天检查一次上个月是否已经归档,集群内只有一个节点执行
+     */
+    @Scheduled(cron = "${hmdp.sign.compact-cron:0 30 3 * * ?}")
+    public void compactLastMonth() {
+        YearMonth month = YearMonth.now().minusMonths(1);
+        String suffix = month.format(MONTH_FORMATTER);
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.SIGN_COMPACTED_KEY + suffix))) {
+            return;
+        }
+        SimpleRedisLock lock = SimpleRedisLock.ofKey(RedisConstants.LOCK_SIGN_COMPACT_KEY + suffix, stringRedisTemplate);
+        if (!lock.tryLock(TimeUnit.HOURS.toSeconds(1))) {
+            return;
+        }
+        try {
+            int count = compactMonth(month);
+            stringRedisTemplate.opsForValue().set(RedisConstants.SIGN_COMPACTED_KEY + suffix, String.valueOf(count), 62, TimeUnit.DAYS);
+            log.info("归档{}的签到记录{}条", suffix, count);
+        } catch (Exception e) {
+            log.error("归档{}的签到记录失败:", suffix, e);
+        } finally {
+            //归档超过锁的过期时间时锁可能已经被其他节点获取,只释放自己的锁
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int compactMonth(YearMonth month) {
+        if (!month.isBefore(YearMonth.now())) {
+            throw new IllegalArgumentException("只能归档已经结束的月份:" + month);
+        }
+        ScanOptions options = ScanOptions.scanOptions()
+                .match(RedisConstants.USER_SIGN_KEY + "*:" + month.format(MONTH_FORMATTER))
+                .count(1000)
+                .build();
+        int total = 0;
+        List<String> keys = new ArrayList<>(compactBatchSize);
+        try (Cursor<String> cursor = stringRedisTemplate.scan(options)) {
+            while (cursor.hasNext()) {
+                keys.add(cursor.next());
+                if (keys.size() >= compactBatchSize) {
+                    total += compactBatch(keys, month);
+                    keys.clear();
+                }
+            }
+        }
+        if (!keys.isEmpty()) {
+            total += compactBatch(keys, month);
+        }
+        return total;
+    }
+
+    /**
+     * 一次MGET读取一批bitmap,批量写入tb_sign,再一次管道设置过期时间
+     */
+    private int compactBatch(List<String> keys, YearMonth month) {
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < keys.size(); i++) {
+            rawKeys[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+        List<Sign> signs = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] bitmap = values == null ? null : values.get(i);
+            Long userId = parseUserId(keys.get(i));
+            if (bitmap == null || userId == null) {
+                continue;
+            }
+            signs.add(new Sign()
+                    .setUserId(userId)
+                    .setYear(month.getYear())
+                    .setMonth(month.getMonthValue())
+                    .setSignBits(toSignBits(bitmap, month.lengthOfMonth())));
+        }
+        if (!signs.isEmpty()) {
+            baseMapper.upsertBatch(signs);
+        }
+        long ttlSeconds = TimeUnit.DAYS.toSeconds(retainDays);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[] rawKey : rawKeys) {
+                connection.keyCommands().expire(rawKey, ttlSeconds);
+            }
+            return null;
+        });
+        return signs.size();
+    }
+
+    private static Long parseUserId(String key) {
+        int start = RedisConstants.USER_SIGN_KEY.length();
+        int end = key.indexOf(':', start);
+        try {
+            return Long.valueOf(key.substring(start, end));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * redis的bitmap中第0位是第0个字节的最高位,转换为第n天对应第n-1位
+     */
+    static int toSignBits(byte[] bitmap, int days) {
+        int bits = 0;
+        for (int day = 0; day < days && (day >>> 3) < bitmap.length; day++) {
+            if ((bitmap[day >>> 3] & (0x80 >>> (day & 7))) != 0) {
+                bits |= 1 << day;
+            }
+        }
+        return bits;
+    }
+}
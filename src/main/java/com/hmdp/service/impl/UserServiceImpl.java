@@ -2,9 +2,8 @@ package com.hmdp.service.impl;
 
 import cn.hutool.Hutool;
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
-import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -12,18 +11,19 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilters;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.TokenManager;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -39,6 +39,13 @@ import java.util.concurrent.TimeUnit;
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private BloomFilters bloomFilters;
+
+    @Resource
+    private TokenManager tokenManager;
+
     /**
      * 登录
      * @param loginForm
@@ -61,19 +68,25 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             user=createUserWithPhone(phone);
         }
         UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        //将dto转换为map,并将id为long类型转换为string
-        Map<String, Object> map = BeanUtil.beanToMap(userDTO,new HashMap<>(),
-                CopyOptions.create().setIgnoreNullValue(true).setFieldValueEditor((fieldName,fieldVal)->fieldVal.toString()));
-        //生成token作为redis的key
-        String token =UUID.randomUUID().toString(true);
-        String tokenKey=RedisConstants.LOGIN_USER_KEY+token;
-        //存储
-        stringRedisTemplate.opsForHash().putAll(tokenKey,map);
-        //设置有效期
-        stringRedisTemplate.expire(tokenKey,RedisConstants.LOGIN_USER_TTL,TimeUnit.DAYS);
+        //签发token,redis模式保存到redis的hash中,签名模式把用户信息签名后放在token中
+        String token = tokenManager.issue(userDTO);
         return Result.ok(token);
     }
 
+    /**
+     * 登出
+     * @param token
+     * @return
+     */
+    @Override
+    public Result logout(String token) {
+        if(StrUtil.isBlank(token)){
+            return Result.ok();
+        }
+        tokenManager.revoke(token);
+        return Result.ok();
+    }
+
     /**
      * 根据手机号创建用户对象
      * @param phone
@@ -85,6 +98,7 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
                 .nickName(SystemConstants.USER_NICK_NAME_PREFIX+RandomUtil.randomString(10))
                 .build();
         save(user);
+        bloomFilters.add(BloomFilters.USER, user.getId());
         return user;
     }
 
@@ -1,30 +1,49 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOut;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.StreamConsumer;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -41,59 +60,235 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService iSeckillVoucherService;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
-    //阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks=new ArrayBlockingQueue<>(1024*1024);
-    //线程池
-    private final static ExecutorService SECKILL_ORDER_EXECUTOR= Executors.newSingleThreadExecutor();
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //订单由消费线程异步保存,通过代理对象调用才能让事务生效
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    //消费者名称,同一个消费者组中每个节点必须唯一,默认主机名加端口,重启后仍然能认领自己未确认的订单
+    @Value("${hmdp.order.stream.consumer:}")
+    private String consumerName;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    @Value("${hmdp.order.stream.block-millis:2000}")
+    private long blockMillis;
+
+    //消息超过这个时间没有确认,认为消费者已经宕机,由其他消费者认领
+    @Value("${hmdp.order.stream.pending-idle-millis:60000}")
+    private long pendingIdleMillis;
+
+    //投递次数超过这个值仍然失败的订单转入死信队列
+    @Value("${hmdp.order.stream.max-deliveries:5}")
+    private long maxDeliveries;
+
+    //已确认的订单在stream中保留的时间,超过后在认领时裁剪,小于0时不裁剪
+    @Value("${hmdp.order.stream.retain-millis:3600000}")
+    private long retainMillis;
+
+    //每个分片stream的消费线程数,每个线程是消费者组中的一个消费者
+    @Value("${hmdp.order.stream.consumers:1}")
+    private int consumers;
+
+    //每次最多读取的订单数,同一批订单按优惠券分组批量写库
+    @Value("${hmdp.order.stream.batch-size:200}")
+    private int batchSize;
+
+    //订单stream的消费者组
+    private StreamConsumer orderConsumer;
+
+    //已保存并确认的订单数,rate()即为消费速度
+    private Counter drained;
+
+    //保存失败留在pending-list中等待重新投递的订单数
+    private Counter failed;
+
+    private Counter deadLettered;
+
+    //从写入stream到保存确认的耗时,根据stream消息id中的时间戳计算
+    private Timer latency;
+
+    //每个分片stream在消费者组中的积压,由sampleStreamDepth定时刷新,抓取指标时不访问redis
+    private final Map<String, StreamDepth> streamDepth = new ConcurrentHashMap<>();
+
+    private static final class StreamDepth {
+        //已投递未确认
+        private volatile double pending;
+        //未投递,redis7以上才有,否则为NaN
+        private volatile double lag = Double.NaN;
+    }
 
     //该类初始化完毕就执行线程任务
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        if(StrUtil.isBlank(consumerName)){
+            consumerName=StreamConsumer.defaultConsumerName(serverPort);
+        }
+        List<String> streamKeys = new ArrayList<>(seckillStockShards.streamKeys());
+        //分片之前的订单stream中还有未保存的订单时一并消费
+        if(Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.STREAM_ORDERS_KEY))){
+            streamKeys.add(RedisConstants.STREAM_ORDERS_KEY);
+        }
+        registerMetrics(streamKeys);
+        orderConsumer = new StreamConsumer(stringRedisTemplate, RedisConstants.STREAM_ORDERS_GROUP, consumerName, this::handleRecords)
+                .setBatchSize(batchSize)
+                .setBlockMillis(blockMillis)
+                .setPendingIdleMillis(pendingIdleMillis)
+                .setMaxDeliveries(maxDeliveries)
+                .setRetainMillis(retainMillis)
+                .setDeadLetterKey(RedisConstants.STREAM_ORDERS_DLQ_KEY)
+                .setDeadLetterListener((streamKey, record, deliveries) -> {
+                    deadLettered.increment();
+                    markDeadLetter(record);
+                    log.error("订单{}投递{}次仍然失败,已转入死信队列",record.getId(),deliveries);
+                });
+        orderConsumer.start(streamKeys, consumers, "seckill-order-");
+    }
+
+    @PreDestroy
+    private void destroy(){
+        orderConsumer.stop();
+    }
+
+    private void registerMetrics(List<String> streamKeys){
+        drained = Counter.builder("order.stream.drained").description("已保存并确认的订单数").register(meterRegistry);
+        failed = Counter.builder("order.stream.failed").description("保存失败等待重新投递的订单数").register(meterRegistry);
+        deadLettered = Counter.builder("order.stream.dead.letter").register(meterRegistry);
+        latency = Timer.builder("order.stream.latency")
+                .description("订单从写入stream到保存确认的耗时")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        for (String streamKey : streamKeys) {
+            StreamDepth depth = new StreamDepth();
+            streamDepth.put(streamKey, depth);
+            Gauge.builder("order.stream.pending", depth, d -> d.pending)
+                    .description("已投递未确认的订单数")
+                    .tag("stream", streamKey)
+                    .register(meterRegistry);
+            Gauge.builder("order.stream.lag", depth, d -> d.lag)
+                    .description("还没有投递给消费者的订单数")
+                    .tag("stream", streamKey)
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * 采样每个分片stream的积压 XINFO GROUPS stream.orders:{0}
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.stream.sample-millis:5000}")
+    public void sampleStreamDepth(){
+        streamDepth.forEach((streamKey, depth) -> {
+            try {
+                stringRedisTemplate.opsForStream().groups(streamKey).forEach(group -> {
+                    if(RedisConstants.STREAM_ORDERS_GROUP.equals(group.groupName())){
+                        depth.pending = group.pendingCount();
+                        Object lag = group.getRaw().get("lag");
+                        depth.lag = lag == null ? Double.NaN : Double.parseDouble(lag.toString());
+                    }
+                });
+            } catch (Exception e) {
+                log.warn("采样{}积压失败:{}", streamKey, e.getMessage());
+            }
+        });
     }
 
-    //线程任务
-    private class VoucherOrderHandler implements Runnable{
-        @Override
-        public void run() {
-            while(true){
-                try{
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    handleVoucherOrder(voucherOrder);
-                }catch (Exception e){
-                    log.error("处理线程异常:",e);
+    /**
+     * 批量处理订单消息,按优惠券分组,每组一个事务,成功的组批量确认
+     * 失败的组留在pending-list中,由reclaimPendingOrders重新投递,不影响其他优惠券的订单
+     */
+    private void handleRecords(String streamKey, List<MapRecord<String, Object, Object>> records){
+        Map<Long, List<MapRecord<String, Object, Object>>> byVoucher = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            Long voucherId = Long.valueOf(record.getValue().get("voucherId").toString());
+            byVoucher.computeIfAbsent(voucherId, k -> new ArrayList<>()).add(record);
+        }
+        byVoucher.forEach((voucherId, group) -> {
+            try {
+                List<VoucherOrder> voucherOrders = new ArrayList<>(group.size());
+                for (MapRecord<String, Object, Object> record : group) {
+                    voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                }
+                List<Long> collided = proxy.createVoucherOrders(voucherId, voucherOrders);
+                if(!collided.isEmpty()){
+                    group = deadLetterCollided(streamKey, group, collided);
+                }
+                //确认消息 XACK stream.orders:{0} g1 id1 id2 ...
+                RecordId[] ids = group.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+                orderConsumer.acknowledge(streamKey, ids);
+                long now = System.currentTimeMillis();
+                for (RecordId id : ids) {
+                    latency.record(Math.max(0, now - id.getTimestamp()), TimeUnit.MILLISECONDS);
                 }
+                drained.increment(ids.length);
+            } catch (Exception e) {
+                failed.increment(group.size());
+                log.error("处理优惠券{}的{}条订单异常:",voucherId,group.size(),e);
+            }
+        });
+    }
+
+    /**
+     * 订单id与已保存的其他订单冲突,重试也无法保存,直接转入死信队列,不能当作重复投递静默丢弃
+     * @return 其余需要确认的订单消息
+     */
+    private List<MapRecord<String, Object, Object>> deadLetterCollided(String streamKey, List<MapRecord<String, Object, Object>> group, List<Long> collided){
+        List<MapRecord<String, Object, Object>> rest = new ArrayList<>(group.size());
+        for (MapRecord<String, Object, Object> record : group) {
+            Long orderId = Long.valueOf(record.getValue().get("id").toString());
+            if(collided.contains(orderId)){
+                orderConsumer.deadLetter(streamKey, record, Collections.singletonMap("reason", "订单id冲突"));
+                deadLettered.increment();
+                markDeadLetter(record);
+                log.error("订单{}的id已经被其他订单占用,已转入死信队列:{}",orderId,record.getValue());
+            }else{
+                rest.add(record);
             }
         }
+        return rest;
     }
-    private IVoucherOrderService proxy;
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        //通过redisson获取锁
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = redisLock.tryLock();
-        if(!isLock){
-            log.error("不允许重复下单");
+
+    /**
+     * 记录订单转入死信队列的用户 SADD seckill:dead:{voucherId} userId
+     * 这些用户仍在分片的一人一单集合中,但没有数据库订单,对账时需要扣除,否则对账永远不一致
+     */
+    private void markDeadLetter(MapRecord<String, Object, Object> record){
+        Object voucherId = record.getValue().get("voucherId");
+        Object userId = record.getValue().get("userId");
+        if(voucherId==null||userId==null){
             return;
         }
-
         try {
-            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            proxy.createVoucherOrder(voucherOrder);
-        } catch (IllegalStateException e) {
-            throw new RuntimeException(e);
-        } finally {
-            redisLock.unlock();
+            stringRedisTemplate.opsForSet().add(RedisConstants.SECKILL_DEAD_KEY + voucherId, userId.toString());
+        } catch (Exception e) {
+            log.error("记录死信订单{}失败:",record.getId(),e);
         }
     }
 
+    /**
+     * 认领长时间未确认的订单,包括其他节点宕机前没处理完的和本节点处理失败的
+     * 多次投递仍然失败的订单转入死信队列stream.orders.dlq,由人工处理
+     * 同时裁剪已经确认并超过保留时间的订单消息
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.stream.reclaim-millis:30000}")
+    public void reclaimPendingOrders(){
+        orderConsumer.reclaimPending();
+    }
+
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;//泛型指定的是脚本返回值类型
     static{
         SECKILL_SCRIPT=new DefaultRedisScript<>();
@@ -101,6 +296,13 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
+    private static final DefaultRedisScript<Long> SECKILL_FALLBACK_SCRIPT;
+    static{
+        SECKILL_FALLBACK_SCRIPT=new DefaultRedisScript<>();
+        SECKILL_FALLBACK_SCRIPT.setLocation(new ClassPathResource("seckill_fallback.lua"));
+        SECKILL_FALLBACK_SCRIPT.setResultType(Long.class);
+    }
+
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
 //        //根据id查询优惠券
@@ -144,47 +346,118 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Override
     public Result seckillVoucher(Long voucherId) {
         Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWorker.nextId("order");//生成下一个订单的随机id,不是包装类
-        Long result=stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),voucherId.toString(),userId.toString(),String.valueOf(orderId));
-        int r=result.intValue();
+        //已经售罄的券直接在内存中拒绝,不生成订单id也不执行脚本
+        if(seckillSoldOut.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
+        int shards = seckillStockShards.shardsOf(voucherId);
+        if(shards==0){
+            return Result.fail("库存不足");
+        }
+        long orderId = idGenerator.nextId("order");//生成下一个订单的随机id,不是包装类
+        int r=trySeckill(voucherId,userId,orderId,shards);
+        if(r==1){
+            //所有分片都没有库存,标记售罄并通知其他节点
+            seckillSoldOut.markSoldOut(voucherId);
+        }
         if(r!=0){
             return Result.fail(r==1?"库存不足":"不能重复下单");
         }
 
-        //创建订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        //订单id
-        voucherOrder.setId(orderId);
-        //用户id
-        voucherOrder.setUserId(userId);
-        //代金券id
-        voucherOrder.setVoucherId(voucherId);
-        //存入阻塞队列
-        orderTasks.add(voucherOrder);
-        //提前获取代理对象,让子线程拿到,
-        //因为主线程开辟的新线程会和主线程共享同一个内存空间,所以可以给主线程赋值成员变量的方式让子线程可以拿到代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        //订单信息已经由lua脚本写入分片的stream.orders:{shard},由消费者组异步保存
         //返回订单id
         return Result.ok(orderId);
     }
 
-    @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-            //一人一单
-            Long userId = UserHolder.getUser().getId();
-            int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-            if(count>0){
-                log.error("用户已经购买过一次");
+    /**
+     * 分片扣库存
+     * 先在用户所属分片判断一人一单并占住名额,所属分片库存不足时依次尝试其他分片,都不足时释放名额
+     * 每次脚本调用只操作一个分片,集群模式下不会跨slot
+     * @return 0成功 1库存不足 2重复下单
+     */
+    private int trySeckill(Long voucherId, Long userId, long orderId, int shards){
+        String[] args = {voucherId.toString(), userId.toString(), String.valueOf(orderId)};
+        int home = SeckillStockShards.homeShard(userId, shards);
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                Arrays.asList(SeckillStockShards.stockKey(voucherId, home), SeckillStockShards.orderKey(voucherId, home), SeckillStockShards.streamKey(home)),
+                (Object[]) args);
+        int r = result.intValue();
+        if(r!=3){
+            return r;
+        }
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long fallback = stringRedisTemplate.execute(SECKILL_FALLBACK_SCRIPT,
+                    Arrays.asList(SeckillStockShards.stockKey(voucherId, shard), SeckillStockShards.streamKey(shard)),
+                    (Object[]) args);
+            if(fallback.intValue()==0){
+                return 0;
             }
-            //扣减库存
-            boolean success = iSeckillVoucherService.update().setSql("stock=stock-1")
-                    .eq("voucher_id", voucherOrder.getVoucherId())
-                    .gt("stock",0)
-                    .update();
-            if(!success){
-                log.error("库存不足");
+        }
+        //所有分片都没有库存,释放一人一单的名额
+        stringRedisTemplate.opsForSet().remove(SeckillStockShards.orderKey(voucherId, home), userId.toString());
+        return 1;
+    }
+
+    /**
+     * 批量保存同一张优惠券的订单
+     * lua脚本已经保证了库存和一人一单,这里只需要处理消息重复投递:
+     * 一次查询过滤掉已经下过单的用户,INSERT IGNORE跳过已经保存过的订单,再按实际插入的行数扣减库存
+     * INSERT IGNORE对主键冲突同样静默跳过,有订单被跳过时按id查回已有的订单,用户或优惠券不同说明是id冲突
+     * @return 订单id冲突、没有保存的订单id
+     */
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public List<Long> createVoucherOrders(Long voucherId, List<VoucherOrder> voucherOrders) {
+        //一人一单,同一批中也只保留每个用户的第一笔订单
+        Map<Long, VoucherOrder> byUser = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            byUser.putIfAbsent(voucherOrder.getUserId(), voucherOrder);
+        }
+        List<Object> ordered = listObjs(new QueryWrapper<VoucherOrder>().select("user_id")
+                .eq("voucher_id", voucherId)
+                .in("user_id", byUser.keySet()));
+        for (Object userId : ordered) {
+            byUser.remove(Long.valueOf(userId.toString()));
+        }
+        if(byUser.isEmpty()){
+            return Collections.emptyList();
+        }
+        //写入数据库
+        int inserted = baseMapper.insertBatchIgnore(new ArrayList<>(byUser.values()));
+        List<Long> collided = inserted<byUser.size() ? findCollided(voucherId, byUser.values()) : Collections.emptyList();
+        if(inserted==0){
+            return collided;
+        }
+        //扣减库存
+        boolean success = iSeckillVoucherService.update().setSql("stock=stock-"+inserted)
+                .eq("voucher_id", voucherId)
+                .ge("stock",inserted)
+                .update();
+        if(!success){
+            //数据库库存和redis不一致,回滚整批订单,留给重新投递和死信队列处理
+            throw new IllegalStateException("优惠券"+voucherId+"库存不足,无法扣减"+inserted);
+        }
+        return collided;
+    }
+
+    /**
+     * 被INSERT IGNORE跳过的订单中,id已经属于其他用户或其他优惠券的订单
+     * 同一用户重复下单(唯一索引冲突)和同一订单重复投递都不算冲突
+     */
+    private List<Long> findCollided(Long voucherId, Collection<VoucherOrder> orders){
+        Map<Long, VoucherOrder> byId = new HashMap<>(orders.size());
+        for (VoucherOrder order : orders) {
+            byId.put(order.getId(), order);
+        }
+        List<VoucherOrder> existing = query().select("id", "user_id", "voucher_id").in("id", byId.keySet()).list();
+        List<Long> collided = new ArrayList<>();
+        for (VoucherOrder saved : existing) {
+            VoucherOrder order = byId.get(saved.getId());
+            if(!order.getUserId().equals(saved.getUserId())||!voucherId.equals(saved.getVoucherId())){
+                collided.add(order.getId());
             }
-            //写入数据库
-            save(voucherOrder);
         }
+        return collided;
+    }
 }
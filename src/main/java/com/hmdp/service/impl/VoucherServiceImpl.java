@@ -6,14 +6,24 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOut;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SimpleRedisLock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.Set;
 
 /**
  * <p>
@@ -23,6 +33,7 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -32,6 +43,19 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
+    //秒杀结束后等待这段时间再对账,让队列中的订单先保存
+    @Value("${hmdp.seckill.reconcile-grace-millis:300000}")
+    private long reconcileGraceMillis;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -52,7 +76,102 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //将秒杀券的信息存入redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        //将秒杀券的库存分片存入redis中
+        seckillStockShards.init(voucher.getId(),voucher.getStock(),voucher.getEndTime());
+    }
+
+    /**
+     * 启动时把分片之前创建的秒杀券迁移到库存分片,否则shardsOf返回0,这些券会一直按库存不足拒绝
+     * 每张券加锁,多个节点同时启动时只迁移一次
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateLegacySeckillStock(){
+        for (SeckillVoucher voucher : seckillVoucherService.list()) {
+            Long voucherId = voucher.getVoucherId();
+            SimpleRedisLock lock = new SimpleRedisLock("seckill:migrate:" + voucherId, stringRedisTemplate);
+            if(!lock.tryLock(60)){
+                continue;
+            }
+            try {
+                if(seckillStockShards.migrateLegacy(voucherId, voucher.getEndTime())){
+                    log.info("秒杀券{}的库存已迁移到{}个分片",voucherId,seckillStockShards.shards());
+                }
+            } catch (Exception e) {
+                log.error("迁移秒杀券{}的库存失败:",voucherId,e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 秒杀结束后对账
+     * 所有分片下单的用户数和数据库订单数加死信订单数一致时,说明订单已经全部处理,
+     * 以redis分片剩余库存之和修正数据库库存,然后删除分片;不一致时说明还有订单在队列中,稍后再对账
+     * 死信订单占用的库存不退回,留给人工重新保存
+     * 多个节点同时对账时,通过ZREM的返回值保证只有一个节点处理同一张优惠券
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile-millis:60000}")
+    public void reconcileSeckillStock(){
+        long now = System.currentTimeMillis();
+        Set<String> ended = stringRedisTemplate.opsForZSet()
+                .rangeByScore(RedisConstants.SECKILL_VOUCHERS_KEY, 0, now - reconcileGraceMillis);
+        if(ended==null||ended.isEmpty()){
+            return;
+        }
+        for (String id : ended) {
+            Long removed = stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_VOUCHERS_KEY, id);
+            if(removed==null||removed==0){
+                continue;
+            }
+            Long voucherId = Long.valueOf(id);
+            try {
+                if(!reconcile(voucherId)){
+                    stringRedisTemplate.opsForZSet().add(RedisConstants.SECKILL_VOUCHERS_KEY, id, now);
+                }
+            } catch (Exception e) {
+                log.error("秒杀券{}对账异常:",voucherId,e);
+                stringRedisTemplate.opsForZSet().add(RedisConstants.SECKILL_VOUCHERS_KEY, id, now);
+            }
+        }
+    }
+
+    private boolean reconcile(Long voucherId){
+        int shards = seckillStockShards.shardsOf(voucherId);
+        if(shards==0){
+            return true;
+        }
+        long ordered = seckillStockShards.orderedUsers(voucherId, shards);
+        int saved = voucherOrderService.query().eq("voucher_id", voucherId).count();
+        long dead = deadLettered(voucherId);
+        if(ordered!=saved+dead){
+            log.warn("秒杀券{}已下单{}个,数据库只有{}个订单,死信队列{}个,稍后重新对账",voucherId,ordered,saved,dead);
+            return false;
+        }
+        if(dead>0){
+            log.error("秒杀券{}有{}个订单在死信队列{}中没有保存,需要人工处理",voucherId,dead,RedisConstants.STREAM_ORDERS_DLQ_KEY);
+        }
+        int remaining = seckillStockShards.remainingStock(voucherId, shards);
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if(seckillVoucher!=null&&seckillVoucher.getStock()!=remaining){
+            log.warn("秒杀券{}数据库库存{}与redis剩余库存{}不一致,已修正",voucherId,seckillVoucher.getStock(),remaining);
+            seckillVoucherService.update().set("stock",remaining).eq("voucher_id",voucherId).update();
+        }
+        seckillStockShards.clear(voucherId, shards);
+        stringRedisTemplate.delete(RedisConstants.SECKILL_DEAD_KEY + voucherId);
+        seckillSoldOut.clear(voucherId);
+        return true;
+    }
+
+    /**
+     * 转入死信队列且还没有人工补存到数据库的订单数
+     */
+    private long deadLettered(Long voucherId){
+        Set<String> users = stringRedisTemplate.opsForSet().members(RedisConstants.SECKILL_DEAD_KEY + voucherId);
+        if(users==null||users.isEmpty()){
+            return 0;
+        }
+        int resaved = voucherOrderService.query().eq("voucher_id", voucherId).in("user_id", users).count();
+        return users.size()-resaved;
     }
 }
@@ -0,0 +1,74 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 二进制编解码
+ * 格式: 魔数(1字节) + 负载类型(1字节) + 逻辑过期时间(8字节) + 负载
+ * 魔数不是合法的utf-8首字节,可以和旧的json数据区分开
+ * 注册了BinarySchema的类型按结构读写,其余类型负载仍为json
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final byte MAGIC = (byte) 0xB1;
+    private static final byte PAYLOAD_SCHEMA = 1;
+    private static final byte PAYLOAD_JSON = 2;
+    private static final int EXPIRE_OFFSET = 2;
+    private static final int HEADER_LENGTH = 10;
+
+    private final Map<Class<?>, BinarySchema<?>> schemas = new ConcurrentHashMap<>();
+
+    public BinaryCacheCodec register(BinarySchema<?> schema) {
+        schemas.put(schema.type(), schema);
+        return this;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return encodeWithExpire(value, 0);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encodeWithExpire(Object value, long expireMillis) {
+        BinarySchema<Object> schema = (BinarySchema<Object>) schemas.get(value.getClass());
+        BinarySchema.Writer out = new BinarySchema.Writer(256);
+        out.writeByte(MAGIC);
+        out.writeByte(schema != null ? PAYLOAD_SCHEMA : PAYLOAD_JSON);
+        out.writeRawLong(expireMillis);
+        if (schema != null) {
+            schema.write(value, out);
+        } else {
+            out.writeBytes(JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public long readExpire(byte[] bytes) {
+        //只读固定位置的头部,不解析负载
+        return new BinarySchema.Reader(bytes, EXPIRE_OFFSET).readRawLong();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        BinarySchema.Reader in = new BinarySchema.Reader(bytes, HEADER_LENGTH);
+        if (bytes[1] == PAYLOAD_SCHEMA) {
+            BinarySchema<?> schema = schemas.get(type);
+            if (schema == null) {
+                throw new IllegalStateException("未注册的二进制结构:" + type.getName());
+            }
+            return type.cast(schema.read(in));
+        }
+        return JSONUtil.toBean(new String(in.readRemaining(), StandardCharsets.UTF_8), type);
+    }
+}
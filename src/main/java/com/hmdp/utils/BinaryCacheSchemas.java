@@ -0,0 +1,119 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+
+/**
+ * 缓存中常用类型的二进制结构
+ */
+public class BinaryCacheSchemas {
+
+    public static final BinarySchema<Shop> SHOP = new BinarySchema<Shop>() {
+        @Override
+        public Class<Shop> type() {
+            return Shop.class;
+        }
+
+        @Override
+        public void write(Shop shop, Writer out) {
+            out.writeLong(shop.getId());
+            out.writeString(shop.getName());
+            out.writeLong(shop.getTypeId());
+            out.writeString(shop.getImages());
+            out.writeString(shop.getArea());
+            out.writeString(shop.getAddress());
+            out.writeDouble(shop.getX());
+            out.writeDouble(shop.getY());
+            out.writeLong(shop.getAvgPrice());
+            out.writeInt(shop.getSold());
+            out.writeInt(shop.getComments());
+            out.writeInt(shop.getScore());
+            out.writeString(shop.getOpenHours());
+            out.writeDateTime(shop.getCreateTime());
+            out.writeDateTime(shop.getUpdateTime());
+        }
+
+        @Override
+        public Shop read(Reader in) {
+            return new Shop()
+                    .setId(in.readLong())
+                    .setName(in.readString())
+                    .setTypeId(in.readLong())
+                    .setImages(in.readString())
+                    .setArea(in.readString())
+                    .setAddress(in.readString())
+                    .setX(in.readDouble())
+                    .setY(in.readDouble())
+                    .setAvgPrice(in.readLong())
+                    .setSold(in.readInt())
+                    .setComments(in.readInt())
+                    .setScore(in.readInt())
+                    .setOpenHours(in.readString())
+                    .setCreateTime(in.readDateTime())
+                    .setUpdateTime(in.readDateTime());
+        }
+    };
+
+    /**
+     * 只包含表中的字段,作者和点赞状态每次请求单独填充
+     */
+    public static final BinarySchema<Blog> BLOG = new BinarySchema<Blog>() {
+        @Override
+        public Class<Blog> type() {
+            return Blog.class;
+        }
+
+        @Override
+        public void write(Blog blog, Writer out) {
+            out.writeLong(blog.getId());
+            out.writeLong(blog.getShopId());
+            out.writeLong(blog.getUserId());
+            out.writeString(blog.getTitle());
+            out.writeString(blog.getImages());
+            out.writeString(blog.getContent());
+            out.writeInt(blog.getLiked());
+            out.writeInt(blog.getComments());
+            out.writeDateTime(blog.getCreateTime());
+            out.writeDateTime(blog.getUpdateTime());
+        }
+
+        @Override
+        public Blog read(Reader in) {
+            return new Blog()
+                    .setId(in.readLong())
+                    .setShopId(in.readLong())
+                    .setUserId(in.readLong())
+                    .setTitle(in.readString())
+                    .setImages(in.readString())
+                    .setContent(in.readString())
+                    .setLiked(in.readInt())
+                    .setComments(in.readInt())
+                    .setCreateTime(in.readDateTime())
+                    .setUpdateTime(in.readDateTime());
+        }
+    };
+
+    public static final BinarySchema<UserDTO> USER_DTO = new BinarySchema<UserDTO>() {
+        @Override
+        public Class<UserDTO> type() {
+            return UserDTO.class;
+        }
+
+        @Override
+        public void write(UserDTO user, Writer out) {
+            out.writeLong(user.getId());
+            out.writeString(user.getNickName());
+            out.writeString(user.getIcon());
+        }
+
+        @Override
+        public UserDTO read(Reader in) {
+            UserDTO user = new UserDTO();
+            user.setId(in.readLong());
+            user.setNickName(in.readString());
+            user.setIcon(in.readString());
+            return user;
+        }
+    };
+}
@@ -0,0 +1,189 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * 某个类型的二进制结构,按固定的字段顺序手写读写,不走反射
+ * 字段顺序一旦上线不能调整,新增字段只能追加在末尾
+ * @param <T> 类型
+ */
+public interface BinarySchema<T> {
+
+    Class<T> type();
+
+    void write(T value, Writer out);
+
+    T read(Reader in);
+
+    /**
+     * 写入器,包装类型先写一个字节表示是否为null
+     */
+    final class Writer {
+        private byte[] buf;
+        private int pos;
+
+        public Writer(int initialCapacity) {
+            this.buf = new byte[initialCapacity];
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+
+        public void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        public void writeRawLong(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[pos++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        public void writeRawInt(int v) {
+            ensure(4);
+            for (int i = 3; i >= 0; i--) {
+                buf[pos++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        public void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        private boolean writeNullFlag(Object v) {
+            writeByte(v == null ? 0 : 1);
+            return v != null;
+        }
+
+        public void writeLong(Long v) {
+            if (writeNullFlag(v)) {
+                writeRawLong(v);
+            }
+        }
+
+        public void writeInt(Integer v) {
+            if (writeNullFlag(v)) {
+                writeRawInt(v);
+            }
+        }
+
+        public void writeDouble(Double v) {
+            if (writeNullFlag(v)) {
+                writeRawLong(Double.doubleToRawLongBits(v));
+            }
+        }
+
+        public void writeBoolean(Boolean v) {
+            if (writeNullFlag(v)) {
+                writeByte(v ? 1 : 0);
+            }
+        }
+
+        public void writeString(String v) {
+            if (writeNullFlag(v)) {
+                byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+                writeRawInt(bytes.length);
+                writeBytes(bytes);
+            }
+        }
+
+        public void writeDateTime(LocalDateTime v) {
+            if (writeNullFlag(v)) {
+                writeRawLong(v.toEpochSecond(ZoneOffset.UTC));
+                writeRawInt(v.getNano());
+            }
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    /**
+     * 读取器,与Writer一一对应
+     */
+    final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        public Reader(byte[] buf, int offset) {
+            this.buf = buf;
+            this.pos = offset;
+        }
+
+        public int readByte() {
+            return buf[pos++];
+        }
+
+        public long readRawLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        public int readRawInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        public byte[] readRemaining() {
+            byte[] bytes = Arrays.copyOfRange(buf, pos, buf.length);
+            pos = buf.length;
+            return bytes;
+        }
+
+        private boolean isNull() {
+            return readByte() == 0;
+        }
+
+        public Long readLong() {
+            return isNull() ? null : readRawLong();
+        }
+
+        public Integer readInt() {
+            return isNull() ? null : readRawInt();
+        }
+
+        public Double readDouble() {
+            return isNull() ? null : Double.longBitsToDouble(readRawLong());
+        }
+
+        public Boolean readBoolean() {
+            return isNull() ? null : readByte() == 1;
+        }
+
+        public String readString() {
+            if (isNull()) {
+                return null;
+            }
+            int len = readRawInt();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        public LocalDateTime readDateTime() {
+            if (isNull()) {
+                return null;
+            }
+            long second = readRawLong();
+            int nano = readRawInt();
+            return LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC);
+        }
+    }
+}
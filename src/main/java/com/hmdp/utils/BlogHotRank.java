@@ -0,0 +1,222 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 热门笔记排行 blog:hot,分数为随时间衰减的点赞数
+ * 采用前向衰减:t时刻的一次点赞计 2^((t-epoch)/半衰期),越新的点赞权重越大,
+ * 排名与"每次点赞按距今时间衰减后求和"相同,而且每次点赞只需要一次ZINCRBY
+ * 1.点赞/取消点赞在like.lua中和点赞集合一起更新,取消时按原来的点赞时间扣除
+ * 2.发布笔记时加上初始分数post-weight,新笔记有机会进入排行
+ * 3.定时把epoch移到当前时间并等比例缩小所有分数,避免分数指数增长,同时裁剪到max-size
+ * 4.blog:hot不存在时按id分批从tb_blog导入,近似认为点赞都发生在发布时
+ * blog:hot:epoch在导入完成后才写入,没有epoch时点赞和发布不更新排行,查询退回数据库
+ */
+@Slf4j
+@Component
+public class BlogHotRank {
+
+    private static final List<String> KEYS = Arrays.asList(RedisConstants.BLOG_HOT_KEY, RedisConstants.BLOG_HOT_EPOCH_KEY);
+
+    private static final DefaultRedisScript<Long> HOT_SCRIPT;
+    static{
+        HOT_SCRIPT=new DefaultRedisScript<>();
+        HOT_SCRIPT.setLocation(new ClassPathResource("blog_hot.lua"));
+        HOT_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> REBASE_SCRIPT;
+    static{
+        REBASE_SCRIPT=new DefaultRedisScript<>();
+        REBASE_SCRIPT.setLocation(new ClassPathResource("blog_hot_rebase.lua"));
+        REBASE_SCRIPT.setResultType(Long.class);
+    }
+
+    //分数的以2为底的对数低于该值时压缩到(2^(FLOOR_EXP-1),2^FLOOR_EXP]之间,double最小的正规数是2^-1022
+    private static final int FLOOR_EXP = -1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    //分数衰减一半需要的时间
+    @Value("${hmdp.blog.hot.half-life-hours:24}")
+    private long halfLifeHours;
+
+    //发布笔记时的初始分数,相当于发布时有这么多个点赞
+    @Value("${hmdp.blog.hot.post-weight:1}")
+    private double postWeight;
+
+    //排行中最多保留的笔记数
+    @Value("${hmdp.blog.hot.max-size:10000}")
+    private long maxSize;
+
+    //从tb_blog导入时每批读取的笔记数
+    @Value("${hmdp.blog.hot.load-batch-size:1000}")
+    private int loadBatchSize;
+
+    /**
+     * like.lua中与热门排行相关的key
+     */
+    public List<String> keys() {
+        return KEYS;
+    }
+
+    public long halfLifeMillis() {
+        return TimeUnit.HOURS.toMillis(halfLifeHours);
+    }
+
+    /**
+     * 发布笔记时加入排行
+     */
+    public void add(Long blogId, long time) {
+        stringRedisTemplate.execute(HOT_SCRIPT, KEYS,
+                blogId.toString(), String.valueOf(postWeight), String.valueOf(time), String.valueOf(halfLifeMillis()));
+    }
+
+    /**
+     * 按分数从高到低分页 ZREVRANGE blog:hot start end
+     * @param current 页码,从1开始
+     * @return 当前页的笔记id
+     */
+    public List<Long> page(int current, int size) {
+        long start = (long) (current - 1) * size;
+        Set<String> members = stringRedisTemplate.opsForZSet().reverseRange(RedisConstants.BLOG_HOT_KEY, start, start + size - 1);
+        List<Long> ids = new ArrayList<>(members == null ? 0 : members.size());
+        if (members != null) {
+            for (String member : members) {
+                ids.add(Long.valueOf(member));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 排行是否已经建立,还没有导入完成时由调用方退回数据库查询
+     */
+    public boolean exists() {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_EPOCH_KEY));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        rescore();
+    }
+
+    /**
+     * 排行不存在时从数据库导入,否则移动基准时间并裁剪,集群内同一时间只有一个节点执行
+     */
+    @Scheduled(fixedDelayString = "${hmdp.blog.hot.rescore-millis:3600000}", initialDelayString = "${hmdp.blog.hot.rescore-millis:3600000}")
+    public void rescore() {
+        SimpleRedisLock lock = SimpleRedisLock.ofKey(RedisConstants.LOCK_BLOG_HOT_KEY, stringRedisTemplate);
+        if (!lock.tryLock(TimeUnit.MINUTES.toSeconds(10))) {
+            return;
+        }
+        try {
+            if (exists() && Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_KEY))) {
+                Long count = stringRedisTemplate.execute(REBASE_SCRIPT, KEYS,
+                        String.valueOf(System.currentTimeMillis()), String.valueOf(halfLifeMillis()), String.valueOf(maxSize), String.valueOf(FLOOR_EXP));
+                log.debug("热门笔记排行重新计分{}条", count);
+            } else {
+                log.info("从数据库导入热门笔记排行{}条", load());
+            }
+        } catch (Exception e) {
+            log.error("更新热门笔记排行失败:", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按id分批读取笔记,每批一次管道写入分数并裁剪,全部写入后再设置基准时间
+     * @return 导入的笔记数
+     */
+    public int load() {
+        stringRedisTemplate.delete(KEYS);
+        long epoch = System.currentTimeMillis();
+        double halfLife = halfLifeMillis();
+        byte[] key = RedisConstants.BLOG_HOT_KEY.getBytes(StandardCharsets.UTF_8);
+        long lastId = 0;
+        int total = 0;
+        while (true) {
+            List<Blog> blogs = blogMapper.selectList(new QueryWrapper<Blog>()
+                    .select("id", "liked", "create_time")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + loadBatchSize));
+            if (blogs.isEmpty()) {
+                stringRedisTemplate.opsForValue().set(RedisConstants.BLOG_HOT_EPOCH_KEY, String.valueOf(epoch));
+                return total;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Blog blog : blogs) {
+                    long time = blog.getCreateTime() == null ? epoch
+                            : blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    double likes = postWeight + (blog.getLiked() == null ? 0 : blog.getLiked());
+                    double score = likes > 0 ? score(Math.log(likes) / Math.log(2) + (time - epoch) / halfLife) : 0;
+                    connection.zSetCommands().zAdd(key, score,
+                            blog.getId().toString().getBytes(StandardCharsets.UTF_8));
+                }
+                connection.zSetCommands().zRemRange(key, 0, -(maxSize + 1));
+                return null;
+            });
+            total += blogs.size();
+            lastId = blogs.get(blogs.size() - 1).getId();
+        }
+    }
+
+    /**
+     * 由分数的以2为底的对数计算分数 likes*2^((time-epoch)/半衰期)
+     * 发布很久的笔记直接计算会下溢为0,排名相同后按成员字符串排序和裁剪
+     * 低于2^FLOOR_EXP的部分单调压缩到(2^(FLOOR_EXP-1),2^FLOOR_EXP]之间,旧笔记之间仍按衰减后的分数排序
+     */
+    static double score(double exp) {
+        if (exp >= FLOOR_EXP) {
+            return Math.pow(2, exp);
+        }
+        double d = FLOOR_EXP - exp;
+        return Math.pow(2, FLOOR_EXP - d / (1 + d));
+    }
+
+    /**
+     * score的反函数,由分数还原以2为底的对数,与blog_hot_rebase.lua中的换算相同
+     */
+    static double exp(double score) {
+        double log2 = Math.log(score) / Math.log(2);
+        if (score >= Math.pow(2, FLOOR_EXP)) {
+            return log2;
+        }
+        double y = FLOOR_EXP - log2;
+        return FLOOR_EXP - y / (1 - y);
+    }
+
+    /**
+     * 基准时间向后移动halfLives个半衰期后的分数,与blog_hot_rebase.lua中的换算相同
+     */
+    static double rebase(double score, double halfLives) {
+        return score > 0 ? score(exp(score) - halfLives) : score;
+    }
+}
@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+/**
+ * 本地布隆过滤器
+ * 位数组的存储顺序与redis的bitmap一致(第0位是第0个字节的最高位),可以直接合并redis中bitmap的字节
+ */
+public class BloomFilter {
+
+    private final long numBits;
+    private final int numHashes;
+    private final byte[] bits;
+
+    public BloomFilter(long numBits, int numHashes) {
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.bits = new byte[(int) ((numBits + 7) >>> 3)];
+    }
+
+    /**
+     * 根据预计元素数量和期望误判率计算大小
+     * @param expectedInsertions 预计元素数量
+     * @param fpp 期望误判率
+     */
+    public static BloomFilter create(long expectedInsertions, double fpp) {
+        long numBits = optimalNumBits(expectedInsertions, fpp);
+        return new BloomFilter(numBits, optimalNumHashes(expectedInsertions, numBits));
+    }
+
+    public static long optimalNumBits(long expectedInsertions, double fpp) {
+        return (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    }
+
+    public static int optimalNumHashes(long expectedInsertions, long numBits) {
+        return Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * 计算id对应的所有位下标,两个哈希值线性组合得到k个哈希
+     */
+    public long[] offsets(long id) {
+        long hash = mix(id);
+        long h1 = (int) hash;
+        long h2 = (int) (hash >>> 32);
+        long[] offsets = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+        }
+        return offsets;
+    }
+
+    /**
+     * 64位哈希的混合函数(splitmix64),让连续的id分散开
+     */
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public void put(long id) {
+        long[] offsets = offsets(id);
+        synchronized (this) {
+            for (long offset : offsets) {
+                bits[(int) (offset >>> 3)] |= 0x80 >>> (int) (offset & 7);
+            }
+        }
+    }
+
+    public boolean mightContain(long id) {
+        for (long offset : offsets(id)) {
+            if ((bits[(int) (offset >>> 3)] & (0x80 >>> (int) (offset & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把redis中bitmap的字节按位或合并到本地,redis中的bitmap可能比本地短
+     * 与put使用同一把锁,读取redis期间本地新增的位不会被覆盖
+     */
+    public void load(byte[] redisBits) {
+        int length = Math.min(redisBits.length, bits.length);
+        synchronized (this) {
+            for (int i = 0; i < length; i++) {
+                bits[i] |= redisBits[i];
+            }
+        }
+    }
+
+    /**
+     * 根据已置位比例估算当前误判率
+     * @param bitCount 已置为1的位数
+     */
+    public double estimateFpp(long bitCount) {
+        return Math.pow((double) bitCount / numBits, numHashes);
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * 位数和哈希函数个数,两者都相同时bitmap的位下标才通用
+     */
+    public String getSizing() {
+        return numBits + ":" + numHashes;
+    }
+}
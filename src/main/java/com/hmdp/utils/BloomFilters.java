@@ -0,0 +1,218 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * 防止缓存穿透的布隆过滤器,分别保存商铺、用户、笔记的id
+ * 启动时从数据库初始化(redis中已按相同大小初始化过则跳过),新增数据时增量添加
+ */
+@Slf4j
+@Component
+public class BloomFilters {
+    public static final String SHOP = "shop";
+    public static final String USER = "user";
+    public static final String BLOG = "blog";
+
+    private static final int SEED_BATCH_SIZE = 5000;
+    //初始化锁的过期时间,持有锁的节点宕机后其他节点最多等待这么久接手
+    private static final long SEED_LOCK_SECONDS = 3600;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final long expectedInsertions;
+    private final double fpp;
+    private final boolean localCopy;
+
+    private final Map<String, RedisBloomFilter> filters = new ConcurrentHashMap<>();
+    private final Map<String, RedisBloomFilter> filtersByKeyPrefix = new ConcurrentHashMap<>();
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private UserMapper userMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    public BloomFilters(StringRedisTemplate stringRedisTemplate,
+                        MeterRegistry meterRegistry,
+                        @Value("${hmdp.bloom.expected-insertions:1000000}") long expectedInsertions,
+                        @Value("${hmdp.bloom.fpp:0.01}") double fpp,
+                        @Value("${hmdp.bloom.local-copy:true}") boolean localCopy) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+        this.localCopy = localCopy;
+    }
+
+    @PostConstruct
+    private void init() {
+        register(SHOP, RedisConstants.CACHE_SHOP_KEY);
+        register(USER, RedisConstants.CACHE_USER_KEY);
+        register(BLOG, null);
+    }
+
+    /**
+     * 应用启动完成后再初始化,保证数据源(包括schema初始化)已经就绪
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void seedOnStartup() {
+        RedisBloomFilter shop = filters.get(SHOP);
+        RedisBloomFilter user = filters.get(USER);
+        RedisBloomFilter blog = filters.get(BLOG);
+        //初始化可能要扫描整张表,放到后台线程,完成前过滤器放行所有id
+        Thread seeder = new Thread(() -> {
+            seed(shop, shopMapper);
+            seed(user, userMapper);
+            seed(blog, blogMapper);
+        }, "bloom-filter-seeder");
+        seeder.setDaemon(true);
+        seeder.start();
+    }
+
+    /**
+     * 注册一个布隆过滤器
+     * @param name 名称
+     * @param keyPrefix 对应的缓存键前缀,CacheClient查询该前缀时先经过过滤器,可以为null
+     */
+    public RedisBloomFilter register(String name, String keyPrefix) {
+        RedisBloomFilter filter = new RedisBloomFilter(name, stringRedisTemplate, expectedInsertions, fpp, localCopy);
+        filters.put(name, filter);
+        if (keyPrefix != null) {
+            filtersByKeyPrefix.put(keyPrefix, filter);
+        }
+        Gauge.builder("cache.bloom.fpp", filter, RedisBloomFilter::getFpp)
+                .description("按置位比例估算的误判率")
+                .tag("name", name)
+                .register(meterRegistry);
+        FunctionCounter.builder("cache.bloom.rejected", filter, RedisBloomFilter::getRejected)
+                .tag("name", name)
+                .register(meterRegistry);
+        FunctionCounter.builder("cache.bloom.false.positives", filter, RedisBloomFilter::getFalsePositives)
+                .description("过滤器放行但数据库中不存在的次数")
+                .tag("name", name)
+                .register(meterRegistry);
+        return filter;
+    }
+
+    /**
+     * 初始化完成标记 bloom:{name}:ready 的值是过滤器大小,与当前配置不同时删除bitmap重新初始化
+     * 同一时间只有一个节点初始化,其他节点等待标记与自己的配置一致
+     */
+    private <T> void seed(RedisBloomFilter filter, BaseMapper<T> mapper) {
+        String readyKey = RedisConstants.BLOOM_KEY + filter.getName() + ":ready";
+        String sizing = filter.getSizing();
+        try {
+            while (!sizing.equals(stringRedisTemplate.opsForValue().get(readyKey))) {
+                SimpleRedisLock lock = SimpleRedisLock.ofKey(RedisConstants.LOCK_BLOOM_SEED_KEY + filter.getName(), stringRedisTemplate);
+                if (!lock.tryLock(SEED_LOCK_SECONDS)) {
+                    //其他节点正在初始化
+                    Thread.sleep(1000);
+                    continue;
+                }
+                try {
+                    if (!sizing.equals(stringRedisTemplate.opsForValue().get(readyKey))) {
+                        //先删除再扫描,删除之后新增的id会写入新的bitmap,删除之前新增的id能被扫描到
+                        stringRedisTemplate.delete(filter.getKey());
+                        long total = seedFromTable(filter, mapper);
+                        stringRedisTemplate.opsForValue().set(readyKey, sizing);
+                        log.info("布隆过滤器{}初始化完成,大小{},共{}条", filter.getName(), sizing, total);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            filter.refresh();
+            filter.markReady();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("布隆过滤器{}初始化失败,暂不拦截", filter.getName(), e);
+        }
+    }
+
+    private <T> long seedFromTable(RedisBloomFilter filter, BaseMapper<T> mapper) {
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                    .select("id").gt("id", lastId).orderByAsc("id").last("limit " + SEED_BATCH_SIZE));
+            if (ids.isEmpty()) {
+                return total;
+            }
+            List<Long> batch = ids.stream().map(id -> ((Number) id).longValue()).collect(Collectors.toList());
+            filter.addAll(batch);
+            lastId = batch.get(batch.size() - 1);
+            total += batch.size();
+        }
+    }
+
+    public RedisBloomFilter get(String name) {
+        return filters.get(name);
+    }
+
+    /**
+     * 根据缓存键前缀获取过滤器,没有返回null
+     */
+    public RedisBloomFilter getByKeyPrefix(String keyPrefix) {
+        return filtersByKeyPrefix.get(keyPrefix);
+    }
+
+    /**
+     * 新增id,并通知其他节点更新本地副本
+     */
+    public void add(String name, Long id) {
+        RedisBloomFilter filter = filters.get(name);
+        if (filter == null || id == null) {
+            return;
+        }
+        filter.add(id);
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_ADD_CHANNEL, name + ":" + id);
+    }
+
+    /**
+     * 其他节点新增了id,消息格式为 名称:id
+     */
+    public void onRemoteAdd(String message) {
+        int i = message.lastIndexOf(':');
+        RedisBloomFilter filter = filters.get(message.substring(0, i));
+        if (filter != null) {
+            filter.addLocal(Long.parseLong(message.substring(i + 1)));
+        }
+    }
+
+    /**
+     * 定时从redis刷新本地副本,兜底丢失的新增通知
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.refresh-millis:60000}")
+    public void refresh() {
+        for (RedisBloomFilter filter : filters.values()) {
+            if (filter.isReady()) {
+                filter.refresh();
+            }
+        }
+    }
+}
@@ -1,59 +1,162 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 /**
  * redis工具
+ * 两级缓存:L1为本节点内的caffeine缓存(容量有限,按访问频率淘汰),保存反序列化后的对象;L2为redis
+ * 缓存失效时通过redis发布订阅通知所有节点删除本地副本
+ * 每一级的命中情况和加载耗时按键前缀记录在CacheMetrics中
  */
 @Slf4j
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
 
+    private final CacheCodecs codecs;
+
+    private final RedissonClient redissonClient;
+
+    private final BloomFilters bloomFilters;
+
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    private final CacheRefreshAhead refreshAhead;
+
+    private final CacheMetrics metrics;
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 本地缓存,key为redis中的key,value为反序列化后的对象(逻辑过期的数据保存LocalEntry)
+     */
+    private final Cache<String, Object> localCache;
+
     //常量需要设置初值,构造注入
-    public CacheClient(@Autowired StringRedisTemplate stringRedisTemplate){
+    public CacheClient(@Autowired StringRedisTemplate stringRedisTemplate,
+                       @Autowired CacheCodecs codecs,
+                       @Autowired RedissonClient redissonClient,
+                       @Autowired BloomFilters bloomFilters,
+                       @Autowired CacheRebuildExecutor rebuildExecutor,
+                       @Autowired CacheRefreshAhead refreshAhead,
+                       @Autowired CacheMetrics metrics,
+                       @Value("${hmdp.cache.local.maximum-size:10000}") long localMaximumSize,
+                       @Value("${hmdp.cache.local.ttl-seconds:60}") long localTtlSeconds){
         this.stringRedisTemplate=stringRedisTemplate;
+        this.codecs=codecs;
+        this.redissonClient=redissonClient;
+        this.bloomFilters=bloomFilters;
+        this.rebuildExecutor=rebuildExecutor;
+        this.refreshAhead=refreshAhead;
+        this.metrics=metrics;
+        this.localCache= Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localTtlSeconds,TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 本地缓存中逻辑过期的数据
+     */
+    private static final class LocalEntry {
+        private final Object data;
+        private final long expireMillis;
+
+        private LocalEntry(Object data, long expireMillis) {
+            this.data = data;
+            this.expireMillis = expireMillis;
+        }
     }
 
     /**
-     * 将任意对象序列化成json存入redis
+     * 将任意对象序列化存入redis
+     * 只用于把数据库中的数据填入缓存,不广播失效消息,其他节点的本地副本与数据库一致,不需要删除
+     * 数据库中的数据被修改或删除后调用delete通知所有节点
      * @param key 键
      * @param value 值
      * @param time 过期时间
      * @param unit 时间单位
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        byte[] bytes = codecs.writer().encode(value);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(rawKey(key), bytes, Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
+        localCache.invalidate(key);
     }
 
     /**
-     * 将任意对象序列化成json并且设置逻辑过期时间存入redis
+     * 将任意对象序列化并且设置逻辑过期时间存入redis
+     * redis中的实际过期时间为逻辑过期时间的两倍,热点数据会在逻辑过期前被刷新,不再访问的冷数据最终由redis删除
+     * 与set一样只用于填充和刷新缓存,不广播失效消息
      * @param key 键
      * @param value 值
      * @param time 过期时间
      * @param unit 时间单位
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        RedisData redisData = RedisData
-                .builder()
-                .data(value)
-                .expireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)))
-                .build();
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        long expireMillis = System.currentTimeMillis() + unit.toMillis(time);
+        byte[] bytes = codecs.writer().encodeWithExpire(value, expireMillis);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(rawKey(key), bytes, Expiration.from(time*2, unit), RedisStringCommands.SetOption.upsert()));
+        localCache.invalidate(key);
+    }
+
+    private static byte[] rawKey(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 按字节读取,空数组表示空值
+     */
+    private byte[] getBytes(String key){
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    /**
+     * 删除缓存,并通知所有节点删除本地副本
+     * @param key 键
+     */
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        publishInvalidation(key);
+    }
+
+    /**
+     * 只删除本节点的本地缓存,由失效消息的监听器调用
+     * @param key 键
+     */
+    public void evictLocal(String key){
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 先删本地再广播,广播的消息本节点也会收到,重复删除无影响
+     * 只在数据被修改或删除时调用,缓存未命中后的填充不广播,否则每次未命中都会清掉所有节点的本地副本
+     */
+    private void publishInvalidation(String key){
+        localCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL,key);
     }
 
     /**
@@ -73,86 +176,375 @@ public class CacheClient {
             , Class<R> type, Function<ID,R> dbFallback
             ,Long time
             ,TimeUnit unit){
+        //布隆过滤器判断一定不存在,不访问redis和数据库
+        if(notExists(keyPrefix,id)){
+            return null;
+        }
         String key= keyPrefix+id;
-        //从redis中查
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //命中返回
-        if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json,type);
+        //先查本地缓存,再查redis
+        Object cached = lookup(key,type,metrics.of(keyPrefix));
+        if(cached!=null){
+            return cached==NULL_VALUE?null:type.cast(cached);
         }
-        if(json!=null||"".equals(json)){//说明是空串,不能用json.equals(""),会爆空指针异常
+        //没命中查数据库,同一个key本节点只有一个线程查
+        return singleFlight.execute(key,()->loadAndCache(keyPrefix,id,dbFallback,time,unit));
+    }
+
+    /**
+     * 互斥锁解决缓存击穿
+     * 本节点内先合并请求,合并后的加载线程再竞争redisson分布式锁,集群内同一个key只有一个节点查数据库
+     * 等待锁由redisson的发布订阅唤醒,拿到锁后再查一次缓存,不轮询不递归
+     * @param keyPrefix 键前缀
+     * @param id 某类型的id
+     * @param type 某类型
+     * @param dbFallback 某类型的数据库查询函数
+     * @param time 过期时间
+     * @param unit 时间单位
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix
+            , ID id
+            , Class<R> type, Function<ID,R> dbFallback
+            ,Long time
+            ,TimeUnit unit){
+        if(notExists(keyPrefix,id)){
             return null;
         }
-        //没命中查数据库
-        R r = dbFallback.apply(id);
-        //数据库没查到,返回404
-        if(r==null){
-            //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
+        String key= keyPrefix+id;
+        Object cached = lookup(key,type,metrics.of(keyPrefix));
+        if(cached!=null){
+            return cached==NULL_VALUE?null:type.cast(cached);
+        }
+        return singleFlight.execute(key,()->loadWithLock(keyPrefix,id,type,dbFallback,time,unit));
+    }
+
+    private <R,ID> R loadWithLock(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        String key= keyPrefix+id;
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_CACHE_KEY+key);
+        boolean isLock;
+        try {
+            isLock = lock.tryLock(RedisConstants.LOCK_CACHE_WAIT,RedisConstants.LOCK_SHOP_TTL,TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        try {
+            if(isLock){
+                //拿到锁后再查一次,其他节点可能已经重建完成
+                Object cached = lookup(key,type,null);
+                if(cached!=null){
+                    return cached==NULL_VALUE?null:type.cast(cached);
+                }
+            }else{
+                log.warn("等待缓存重建锁超时,直接查询数据库:{}",key);
+            }
+            return loadAndCache(keyPrefix,id,dbFallback,time,unit);
+        } finally {
+            if(isLock){
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 布隆过滤器判断id一定不存在
+     */
+    private boolean notExists(String keyPrefix,Object id){
+        RedisBloomFilter filter = bloomFilters.getByKeyPrefix(keyPrefix);
+        return filter!=null&&id instanceof Number&&!filter.mightContain(((Number) id).longValue());
+    }
+
+    /**
+     * 空值标记,用于区分命中空值和未命中
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    /**
+     * 查本地缓存和redis
+     * @param meters 命中指标,拿到锁后的二次检查传null,不重复统计
+     * @return 命中返回数据,命中空值返回NULL_VALUE,未命中返回null
+     */
+    private Object lookup(String key,Class<?> type,CacheMetrics.Prefix meters){
+        Object local = getLocal(key,type);
+        if(local!=null){
+            if(meters!=null){
+                meters.localHit();
+            }
+            return local;
+        }
+        byte[] bytes = getBytes(key);
+        if(meters!=null){
+            meters.localMiss();
+            if(bytes==null){
+                meters.redisMiss();
+            }else if(bytes.length==0){
+                meters.redisNull();
+            }else{
+                meters.redisHit();
+            }
+        }
+        if(bytes==null){
             return null;
         }
-        //数据库查到了,写入redis,返回数据
-        this.set(key,r,time,unit);
+        if(bytes.length==0){//说明是空值
+            return NULL_VALUE;
+        }
+        CacheCodec codec = codecs.readerOf(bytes);
+        Object r = codec.decode(bytes, type);
+        putLocal(key,r,codec.readExpire(bytes));
         return r;
     }
 
     /**
-     * 简易线程池
+     * 查数据库并写入缓存,查不到写入空值
      */
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR= Executors.newFixedThreadPool(10);
+    private <R,ID> R loadAndCache(String keyPrefix,ID id,Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        String key= keyPrefix+id;
+        long start = System.nanoTime();
+        try {
+            R r = dbFallback.apply(id);
+            //数据库没查到,返回404
+            if(r==null){
+                RedisBloomFilter filter = bloomFilters.getByKeyPrefix(keyPrefix);
+                if(filter!=null){
+                    filter.recordFalsePositive();
+                }
+                //将空值写入redis
+                stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
+                return null;
+            }
+            //数据库查到了,写入redis,返回数据
+            this.set(key,r,time,unit);
+            localCache.put(key,r);
+            return r;
+        } finally {
+            metrics.of(keyPrefix).load(false,start);
+        }
+    }
 
     /**
-     * 获取锁
-     * @param key
-     * @return
+     * 批量查询,用于列表接口,redis和数据库的访问次数与数量无关
+     * 一次mget查redis,未命中的id一次性查数据库,结果(包括空值)一次管道写回redis
+     * @param keyPrefix 键前缀
+     * @param ids id集合
+     * @param type 某类型
+     * @param batchDbFallback 批量查询数据库的函数,返回id到数据的映射,查不到的id不放入
+     * @param time 过期时间
+     * @param unit 时间单位
+     * @return id到数据的映射,按ids的顺序排列,不存在的id不放入
+     * @param <R>
+     * @param <ID>
      */
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    public <R,ID> Map<ID,R> queryBatchWithPassThrough(String keyPrefix
+            , Collection<ID> ids
+            , Class<R> type
+            , Function<List<ID>,Map<ID,R>> batchDbFallback
+            ,Long time
+            ,TimeUnit unit){
+        Map<ID,R> found = new LinkedHashMap<>();
+        CacheMetrics.Prefix meters = metrics.of(keyPrefix);
+        //先查本地缓存
+        List<ID> redisIds = new ArrayList<>();
+        for(ID id:new LinkedHashSet<>(ids)){
+            if(notExists(keyPrefix,id)){
+                continue;
+            }
+            R r = getLocal(keyPrefix+id, type);
+            if(r!=null){
+                meters.localHit();
+                found.put(id,r);
+            }else{
+                meters.localMiss();
+                redisIds.add(id);
+            }
+        }
+        if(redisIds.isEmpty()){
+            return sortByIds(ids,found);
+        }
+        //一次mget查redis
+        byte[][] rawKeys = new byte[redisIds.size()][];
+        for(int i=0;i<redisIds.size();i++){
+            rawKeys[i]=rawKey(keyPrefix+redisIds.get(i));
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        List<ID> missIds = new ArrayList<>();
+        for(int i=0;i<redisIds.size();i++){
+            byte[] bytes = values==null?null:values.get(i);
+            ID id = redisIds.get(i);
+            if(bytes==null){
+                meters.redisMiss();
+                missIds.add(id);
+            }else if(bytes.length==0){//空值直接跳过
+                meters.redisNull();
+            }else{
+                meters.redisHit();
+                CacheCodec codec = codecs.readerOf(bytes);
+                R r = codec.decode(bytes, type);
+                putLocal(keyPrefix+id,r,codec.readExpire(bytes));
+                found.put(id,r);
+            }
+        }
+        if(missIds.isEmpty()){
+            return sortByIds(ids,found);
+        }
+        //未命中的一次查数据库
+        long start = System.nanoTime();
+        Map<ID,R> loaded = batchDbFallback.apply(missIds);
+        //一次管道写回,查不到的写空值防止穿透
+        byte[] nullValue = new byte[0];
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for(ID id:missIds){
+                R r = loaded.get(id);
+                if(r==null){
+                    connection.set(rawKey(keyPrefix+id),nullValue,
+                            Expiration.from(RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES),RedisStringCommands.SetOption.upsert());
+                }else{
+                    connection.set(rawKey(keyPrefix+id),codecs.writer().encode(r),
+                            Expiration.from(time,unit),RedisStringCommands.SetOption.upsert());
+                }
+            }
+            return null;
+        });
+        meters.load(false,start);
+        for(ID id:missIds){
+            R r = loaded.get(id);
+            if(r!=null){
+                localCache.put(keyPrefix+id,r);
+                found.put(id,r);
+            }
+        }
+        return sortByIds(ids,found);
+    }
+
+    private static <R,ID> Map<ID,R> sortByIds(Collection<ID> ids,Map<ID,R> found){
+        Map<ID,R> sorted = new LinkedHashMap<>(found.size());
+        for(ID id:ids){
+            R r = found.get(id);
+            if(r!=null){
+                sorted.put(id,r);
+            }
+        }
+        return sorted;
     }
 
     /**
-     * 释放锁
-     * @param key
+     * 查本地缓存,逻辑过期的数据不论是否过期都返回,列表接口允许短暂的旧数据
      */
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+    private <R> R getLocal(String key,Class<R> type){
+        Object local = localCache.getIfPresent(key);
+        if(local instanceof LocalEntry){
+            local=((LocalEntry) local).data;
+        }
+        return type.isInstance(local)?type.cast(local):null;
+    }
+
+    private void putLocal(String key,Object value,long expireMillis){
+        localCache.put(key,expireMillis==0?value:new LocalEntry(value,expireMillis));
     }
 
     /**
      * 逻辑过期解决缓存击穿
      */
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        if(notExists(keyPrefix,id)){
+            return null;
+        }
         String key=keyPrefix+id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isBlank(json)){//不在redis中,不是热点数据
+        CacheMetrics.Prefix meters = metrics.of(keyPrefix);
+        //本地缓存命中且未逻辑过期,直接返回,不访问redis也不反序列化
+        Object local = localCache.getIfPresent(key);
+        if(local instanceof LocalEntry){
+            LocalEntry entry = (LocalEntry) local;
+            if(type.isInstance(entry.data)&&entry.expireMillis>System.currentTimeMillis()){
+                meters.localHit();
+                recordAccess(keyPrefix,key,entry.expireMillis,id,dbFallback,time,unit);
+                return type.cast(entry.data);
+            }
+        }else if(type.isInstance(local)){
+            meters.localHit();
+            return type.cast(local);
+        }
+        meters.localMiss();
+        byte[] bytes = getBytes(key);
+        if(bytes==null){
+            meters.redisMiss();
+            //没有预热或者冷数据已被redis删除,同步加载一次
+            return singleFlight.execute(key,()->loadWithLogicalExpire(keyPrefix,id,dbFallback,time,unit));
+        }
+        if(bytes.length==0){//空值
+            meters.redisNull();
             return null;
         }
-        //命中,反序列化
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject jsonData = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(jsonData, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //未过期
+        meters.redisHit();
+        //命中,先读逻辑过期时间再反序列化;没有逻辑过期时间的数据由redis的ttl控制,视为未过期
+        CacheCodec codec = codecs.readerOf(bytes);
+        long expireMillis = codec.readExpire(bytes);
+        R r = codec.decode(bytes, type);
+        if(expireMillis==0||expireMillis>System.currentTimeMillis()){
+            //未过期,放入本地缓存
+            putLocal(key,r,expireMillis);
+            if(expireMillis>0){
+                recordAccess(keyPrefix,key,expireMillis,id,dbFallback,time,unit);
+            }
             return r;
         }
-        //已过期,获取互斥锁
-        String lockKey=RedisConstants.LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        if(isLock){
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    R newR = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key,newR,time,unit);
-                }catch (Exception e){
-                    throw new RuntimeException(e);
-                }finally {
-                    unlock(lockKey);
-                }
-            });
-        }
+        //已过期,提交重建,本节点内排队去重,执行时再获取互斥锁保证集群内只重建一次
+        meters.stale();
+        rebuildExecutor.submit(key,1,()->rebuildWithLock(keyPrefix,key,id,dbFallback,time,unit));
         //返回过期商铺信息
         return r;
     }
+
+    /**
+     * 记录访问频率,热点key在逻辑过期前会被提前刷新
+     */
+    private <R,ID> void recordAccess(String keyPrefix,String key,long expireMillis,ID id,Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        refreshAhead.recordAccess(key,expireMillis,()->()->rebuildWithLock(keyPrefix,key,id,dbFallback,time,unit));
+    }
+
+    private <R,ID> R loadWithLogicalExpire(String keyPrefix,ID id,Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        String key=keyPrefix+id;
+        long start = System.nanoTime();
+        try {
+            R r = dbFallback.apply(id);
+            if(r==null){
+                RedisBloomFilter filter = bloomFilters.getByKeyPrefix(keyPrefix);
+                if(filter!=null){
+                    filter.recordFalsePositive();
+                }
+                stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
+                return null;
+            }
+            this.setWithLogicalExpire(key,r,time,unit);
+            return r;
+        } finally {
+            metrics.of(keyPrefix).load(false,start);
+        }
+    }
+
+    /**
+     * 重建缓存,锁中保存当前线程的标识,重建超过锁的过期时间时不会删除其他节点的锁
+     */
+    private <R,ID> void rebuildWithLock(String keyPrefix,String key,ID id,Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        SimpleRedisLock lock = SimpleRedisLock.ofKey(RedisConstants.LOCK_CACHE_KEY+key, stringRedisTemplate);
+        if(!lock.tryLock(RedisConstants.LOCK_SHOP_TTL)){
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            R newR = dbFallback.apply(id);
+            if(newR==null){
+                //数据库中已删除,写入空值
+                stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
+                localCache.invalidate(key);
+                return;
+            }
+            this.setWithLogicalExpire(key,newR,time,unit);
+        }finally {
+            metrics.of(keyPrefix).load(true,start);
+            lock.unlock();
+        }
+    }
 }
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器
+ * 逻辑过期时间作为编码的一部分保存,用毫秒时间戳表示,0表示没有逻辑过期时间
+ */
+public interface CacheCodec {
+
+    /**
+     * 是否能解码这段数据,读取时根据数据本身选择编解码器,以便新旧格式共存
+     */
+    boolean supports(byte[] bytes);
+
+    /**
+     * 编码,不带逻辑过期时间
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 编码,带逻辑过期时间
+     * @param expireMillis 逻辑过期时间,毫秒时间戳
+     */
+    byte[] encodeWithExpire(Object value, long expireMillis);
+
+    /**
+     * 读取逻辑过期时间
+     * @return 毫秒时间戳,没有逻辑过期时间返回0
+     */
+    long readExpire(byte[] bytes);
+
+    /**
+     * 解码,带不带逻辑过期时间的数据都能解
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+}
@@ -0,0 +1,39 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * 缓存编解码器的选择
+ * 写入使用配置的编解码器,读取时按数据格式自动识别,切换格式后旧的key仍然可读,随重建逐步迁移
+ */
+@Component
+public class CacheCodecs {
+    public static final String BINARY = "binary";
+    public static final String JSON = "json";
+
+    private final BinaryCacheCodec binaryCodec = new BinaryCacheCodec()
+            .register(BinaryCacheSchemas.SHOP)
+            .register(BinaryCacheSchemas.BLOG)
+            .register(BinaryCacheSchemas.USER_DTO);
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+    private final CacheCodec writer;
+
+    public CacheCodecs(@Value("${hmdp.cache.codec:binary}") String codec) {
+        this.writer = JSON.equalsIgnoreCase(codec) ? jsonCodec : binaryCodec;
+    }
+
+    /**
+     * 写入用的编解码器
+     */
+    public CacheCodec writer() {
+        return writer;
+    }
+
+    /**
+     * 根据数据选择能解码的编解码器
+     */
+    public CacheCodec readerOf(byte[] bytes) {
+        return binaryCodec.supports(bytes) ? binaryCodec : jsonCodec;
+    }
+}
@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存命中指标,按键前缀统计
+ * cache.gets{prefix,level=local|redis,result=hit|null|miss}:本地缓存和redis的命中、空值命中、未命中次数
+ * cache.stale{prefix}:逻辑过期后仍然返回旧数据的次数
+ * cache.load{prefix,mode=sync|rebuild}:查数据库并写回缓存的耗时
+ * 键前缀由代码定义,数量有限;每个前缀的计数器只创建一次,热点路径上只有一次map查找
+ */
+@Component
+public class CacheMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Prefix> prefixes = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 获取某个键前缀的指标
+     * @param keyPrefix 键前缀
+     */
+    public Prefix of(String keyPrefix) {
+        Prefix prefix = prefixes.get(keyPrefix);
+        return prefix != null ? prefix : prefixes.computeIfAbsent(keyPrefix, Prefix::new);
+    }
+
+    public final class Prefix {
+        private final Counter localHit;
+        private final Counter localMiss;
+        private final Counter redisHit;
+        private final Counter redisNull;
+        private final Counter redisMiss;
+        private final Counter stale;
+        private final Timer syncLoad;
+        private final Timer rebuild;
+
+        private Prefix(String keyPrefix) {
+            this.localHit = gets(keyPrefix, "local", "hit");
+            this.localMiss = gets(keyPrefix, "local", "miss");
+            this.redisHit = gets(keyPrefix, "redis", "hit");
+            this.redisNull = gets(keyPrefix, "redis", "null");
+            this.redisMiss = gets(keyPrefix, "redis", "miss");
+            this.stale = Counter.builder("cache.stale")
+                    .description("逻辑过期后返回旧数据的次数")
+                    .tag("prefix", keyPrefix)
+                    .register(meterRegistry);
+            this.syncLoad = load(keyPrefix, "sync");
+            this.rebuild = load(keyPrefix, "rebuild");
+        }
+
+        private Counter gets(String keyPrefix, String level, String result) {
+            return Counter.builder("cache.gets")
+                    .tag("prefix", keyPrefix)
+                    .tag("level", level)
+                    .tag("result", result)
+                    .register(meterRegistry);
+        }
+
+        private Timer load(String keyPrefix, String mode) {
+            return Timer.builder("cache.load")
+                    .description("查数据库并写回缓存的耗时")
+                    .tag("prefix", keyPrefix)
+                    .tag("mode", mode)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+        }
+
+        public void localHit() {
+            localHit.increment();
+        }
+
+        public void localMiss() {
+            localMiss.increment();
+        }
+
+        public void redisHit() {
+            redisHit.increment();
+        }
+
+        public void redisNull() {
+            redisNull.increment();
+        }
+
+        public void redisMiss() {
+            redisMiss.increment();
+        }
+
+        public void stale() {
+            stale.increment();
+        }
+
+        /**
+         * 记录一次加载耗时
+         * @param rebuild 是否为逻辑过期的后台重建,否则为请求线程内的同步加载
+         * @param startNanos System.nanoTime()记录的开始时间
+         */
+        public void load(boolean rebuild, long startNanos) {
+            (rebuild ? this.rebuild : syncLoad).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
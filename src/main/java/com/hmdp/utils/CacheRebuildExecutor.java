@@ -0,0 +1,176 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存重建线程池,所有逻辑过期的重建任务共用
+ * 1.队列有界,满了直接放弃,读请求继续返回旧数据
+ * 2.同一个key排队中只保留一个任务,重复提交累加热度
+ * 3.按热度优先执行,热度相同先提交先执行
+ * 4.任务异常记录日志和指标,不会被吞掉
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+    private final int queueCapacity;
+
+    /**
+     * 排队中和执行中的任务,key为缓存key
+     */
+    private final Map<String, RebuildTask> pending = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Timer latency;
+    private final Counter failures;
+    private final Counter rejected;
+    private final Counter deduplicated;
+
+    public CacheRebuildExecutor(MeterRegistry meterRegistry,
+                                @Value("${hmdp.cache.rebuild.threads:10}") int threads,
+                                @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity,
+                                @Value("${hmdp.cache.rebuild.virtual-threads:false}") boolean virtualThreads) {
+        this.queueCapacity = queueCapacity;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+                threadFactory(virtualThreads));
+        this.executor.prestartAllCoreThreads();
+        this.latency = Timer.builder("cache.rebuild.latency")
+                .description("重建任务执行耗时")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.failures = Counter.builder("cache.rebuild.failures").register(meterRegistry);
+        this.rejected = Counter.builder("cache.rebuild.rejected")
+                .description("队列已满被放弃的重建任务")
+                .register(meterRegistry);
+        this.deduplicated = Counter.builder("cache.rebuild.deduplicated")
+                .description("与排队中的任务合并的重建请求")
+                .register(meterRegistry);
+        Gauge.builder("cache.rebuild.queue.size", queue, PriorityBlockingQueue::size).register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+    }
+
+    /**
+     * 虚拟线程需要jdk21,通过反射创建,运行环境不支持时退回普通线程
+     */
+    private static ThreadFactory threadFactory(boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                Method ofVirtual = Thread.class.getMethod("ofVirtual");
+                Object builder = ofVirtual.invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "cache-rebuild-", 0L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                log.warn("当前jdk不支持虚拟线程,缓存重建使用普通线程");
+            }
+        }
+        AtomicInteger index = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "cache-rebuild-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key,用于去重
+     * @param hotness 热度,越大越先执行
+     * @param task 重建逻辑
+     * @return 是否作为新任务提交,与已有任务合并或队列已满返回false
+     */
+    public synchronized boolean submit(String key, long hotness, Runnable task) {
+        RebuildTask existing = pending.get(key);
+        if (existing != null) {
+            //还在排队就提高优先级,重新入队才能调整位置;已经在执行就直接忽略
+            if (queue.remove(existing)) {
+                existing.hotness += hotness;
+                queue.offer(existing);
+            }
+            deduplicated.increment();
+            return false;
+        }
+        if (queue.size() >= queueCapacity) {
+            rejected.increment();
+            return false;
+        }
+        RebuildTask rebuildTask = new RebuildTask(key, hotness, sequence.getAndIncrement(), task);
+        pending.put(key, rebuildTask);
+        executor.execute(rebuildTask);
+        return true;
+    }
+
+    private synchronized void finish(RebuildTask task) {
+        pending.remove(task.key, task);
+    }
+
+    /**
+     * 排队中的任务数
+     */
+    public int queueSize() {
+        return queue.size();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("缓存重建线程池关闭超时,丢弃{}个排队任务", executor.shutdownNow().size());
+        }
+    }
+
+    private final class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final long seq;
+        private final Runnable task;
+        private long hotness;
+
+        private RebuildTask(String key, long hotness, long seq, Runnable task) {
+            this.key = key;
+            this.hotness = hotness;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                task.run();
+                latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            } catch (Throwable e) {
+                failures.increment();
+                log.error("缓存重建失败:{}", key, e);
+            } finally {
+                finish(this);
+            }
+        }
+
+        @Override
+        public int compareTo(RebuildTask o) {
+            if (hotness != o.hotness) {
+                return Long.compare(o.hotness, hotness);
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 逻辑过期数据的提前刷新
+ * 统计每个key的访问频率(每个周期衰减一半),热点key在逻辑过期前提交重建,读请求不会读到过期数据
+ * 频率衰减到0的冷key不再跟踪,任其逻辑过期后由redis的ttl删除
+ */
+@Component
+public class CacheRefreshAhead {
+
+    private final CacheRebuildExecutor rebuildExecutor;
+    private final long aheadMillis;
+    private final long hotThreshold;
+    private final int maxKeys;
+    private final Map<String, HotKey> keys = new ConcurrentHashMap<>();
+    private final Counter refreshed;
+
+    public CacheRefreshAhead(CacheRebuildExecutor rebuildExecutor,
+                             MeterRegistry meterRegistry,
+                             @Value("${hmdp.cache.refresh-ahead.ahead-millis:60000}") long aheadMillis,
+                             @Value("${hmdp.cache.refresh-ahead.hot-threshold:5}") long hotThreshold,
+                             @Value("${hmdp.cache.refresh-ahead.max-keys:10000}") int maxKeys) {
+        this.rebuildExecutor = rebuildExecutor;
+        this.aheadMillis = aheadMillis;
+        this.hotThreshold = hotThreshold;
+        this.maxKeys = maxKeys;
+        this.refreshed = Counter.builder("cache.refresh.ahead")
+                .description("提前刷新的热点key次数")
+                .register(meterRegistry);
+        Gauge.builder("cache.refresh.ahead.tracked", keys, Map::size).register(meterRegistry);
+    }
+
+    private static final class HotKey {
+        private final Runnable refresher;
+        private final LongAdder hits = new LongAdder();
+        private volatile long expireMillis;
+        private long score;
+
+        private HotKey(Runnable refresher) {
+            this.refresher = refresher;
+        }
+    }
+
+    /**
+     * 记录一次访问
+     * @param key 缓存key
+     * @param expireMillis 当前数据的逻辑过期时间
+     * @param refresher 重建函数,只在第一次跟踪该key时创建
+     */
+    public void recordAccess(String key, long expireMillis, Supplier<Runnable> refresher) {
+        HotKey hotKey = keys.get(key);
+        if (hotKey == null) {
+            if (keys.size() >= maxKeys) {
+                return;
+            }
+            hotKey = keys.computeIfAbsent(key, k -> new HotKey(refresher.get()));
+        }
+        hotKey.hits.increment();
+        hotKey.expireMillis = expireMillis;
+    }
+
+    /**
+     * 每个周期衰减访问频率,把即将过期的热点key提交重建,清理冷key
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh-ahead.interval-millis:1000}")
+    public void refreshHotKeys() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, HotKey>> it = keys.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, HotKey> entry = it.next();
+            HotKey hotKey = entry.getValue();
+            hotKey.score = (hotKey.score >> 1) + hotKey.hits.sumThenReset();
+            if (hotKey.score == 0) {
+                it.remove();
+                continue;
+            }
+            if (hotKey.score >= hotThreshold && hotKey.expireMillis - now <= aheadMillis) {
+                if (rebuildExecutor.submit(entry.getKey(), hotKey.score, hotKey.refresher)) {
+                    refreshed.increment();
+                }
+                //等下次访问带回新的过期时间,避免每个周期重复提交
+                hotKey.expireMillis = Long.MAX_VALUE;
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 笔记推送到粉丝收件箱 feed:{userId}
+ * 1.发布笔记时只XADD一条推送任务到stream.feed,请求不等待推送
+ * 2.消费线程先写入作者发件箱 feed:out:{authorId},粉丝数达到阈值的作者加入feed:big,不再推送,由FeedTimeline读取时拉取
+ * 3.其他作者按id分页读取粉丝,每页一次管道ZADD并裁剪收件箱,每篇笔记最多写入阈值个收件箱
+ * 4.推送失败或节点宕机时任务留在pending-list中由其他消费者认领,重复推送同一篇笔记结果不变
+ */
+@Slf4j
+@Component
+public class FeedFanout {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private FollowMapper followMapper;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //消费者名称,默认主机名加端口
+    @Value("${hmdp.feed.fanout.consumer:}")
+    private String consumerName;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    //每个节点的推送线程数
+    @Value("${hmdp.feed.fanout.consumers:1}")
+    private int consumers;
+
+    //每次最多读取的推送任务数
+    @Value("${hmdp.feed.fanout.batch-size:10}")
+    private int batchSize;
+
+    //每页读取的粉丝数,也是每次管道写入的收件箱数
+    @Value("${hmdp.feed.fanout.page-size:1000}")
+    private int pageSize;
+
+    @Value("${hmdp.feed.fanout.block-millis:2000}")
+    private long blockMillis;
+
+    //任务超过这个时间没有确认,认为消费者已经宕机,由其他消费者认领
+    @Value("${hmdp.feed.fanout.pending-idle-millis:60000}")
+    private long pendingIdleMillis;
+
+    //超过投递次数仍然失败的任务直接确认丢弃,粉丝仍然可以在作者主页看到笔记
+    @Value("${hmdp.feed.fanout.max-deliveries:5}")
+    private long maxDeliveries;
+
+    //已确认的推送任务在stream中保留的时间,超过后在认领时裁剪,小于0时不裁剪
+    @Value("${hmdp.feed.fanout.retain-millis:3600000}")
+    private long retainMillis;
+
+    //每个收件箱、发件箱最多保留的笔记数
+    @Value("${hmdp.feed.inbox-max-size:1000}")
+    private long inboxMaxSize;
+
+    //粉丝数达到这个值的作者只写发件箱
+    @Value("${hmdp.feed.big-author-threshold:10000}")
+    private long bigAuthorThreshold;
+
+    private StreamConsumer fanoutConsumer;
+
+    //写入的收件箱数
+    private Counter pushed;
+
+    //大V只写发件箱的笔记数
+    private Counter pullOnly;
+
+    private Counter failed;
+
+    private Counter dropped;
+
+    //从发布笔记到推送完所有粉丝的耗时
+    private Timer lag;
+
+    @PostConstruct
+    private void init() {
+        if (StrUtil.isBlank(consumerName)) {
+            consumerName = StreamConsumer.defaultConsumerName(serverPort);
+        }
+        pushed = Counter.builder("feed.fanout.pushed").description("写入的收件箱数").register(meterRegistry);
+        pullOnly = Counter.builder("feed.fanout.pull.only").description("大V只写发件箱的笔记数").register(meterRegistry);
+        failed = Counter.builder("feed.fanout.failed").description("推送失败等待重新投递的任务数").register(meterRegistry);
+        dropped = Counter.builder("feed.fanout.dropped").register(meterRegistry);
+        lag = Timer.builder("feed.fanout.lag")
+                .description("从发布笔记到推送完所有粉丝的耗时")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        fanoutConsumer = new StreamConsumer(stringRedisTemplate, RedisConstants.STREAM_FEED_GROUP, consumerName,
+                (streamKey, records) -> records.forEach(this::handleRecord))
+                .setBatchSize(batchSize)
+                .setBlockMillis(blockMillis)
+                .setPendingIdleMillis(pendingIdleMillis)
+                .setMaxDeliveries(maxDeliveries)
+                .setRetainMillis(retainMillis)
+                .setDeadLetterListener((streamKey, record, deliveries) -> {
+                    dropped.increment();
+                    log.error("推送任务{}投递{}次仍然失败,已丢弃:{}", record.getId(), deliveries, record.getValue());
+                });
+        fanoutConsumer.start(Collections.singletonList(RedisConstants.STREAM_FEED_KEY), consumers, "feed-fanout-");
+    }
+
+    @PreDestroy
+    private void destroy() {
+        fanoutConsumer.stop();
+    }
+
+    /**
+     * 提交推送任务 XADD stream.feed * blogId .. authorId .. time ..
+     * @param time 笔记的发布时间,作为收件箱中的分数
+     */
+    public void submit(Long authorId, Long blogId, long time) {
+        Map<String, String> task = new HashMap<>(4);
+        task.put("blogId", blogId.toString());
+        task.put("authorId", authorId.toString());
+        task.put("time", String.valueOf(time));
+        stringRedisTemplate.opsForStream().add(RedisConstants.STREAM_FEED_KEY, task);
+    }
+
+    private void handleRecord(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> value = record.getValue();
+        try {
+            fanOut(Long.valueOf(value.get("authorId").toString()), value.get("blogId").toString(),
+                    Long.parseLong(value.get("time").toString()));
+            fanoutConsumer.acknowledge(RedisConstants.STREAM_FEED_KEY, record.getId());
+            lag.record(Math.max(0, System.currentTimeMillis() - record.getId().getTimestamp()), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            failed.increment();
+            log.error("推送笔记{}异常:", value.get("blogId"), e);
+        }
+    }
+
+    /**
+     * 写入作者发件箱,不是大V时按tb_follow的id分页读取粉丝,每页一次管道写入收件箱并裁剪到inboxMaxSize
+     * ZADD feed:{userId} time blogId
+     * ZREMRANGEBYRANK feed:{userId} 0 -(inboxMaxSize+1)
+     */
+    private void fanOut(Long authorId, String blogId, long time) {
+        byte[] member = blogId.getBytes(StandardCharsets.UTF_8);
+        byte[] outbox = (RedisConstants.FEED_OUTBOX_KEY + authorId).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zAdd(outbox, time, member);
+            connection.zSetCommands().zRemRange(outbox, 0, -(inboxMaxSize + 1));
+            return null;
+        });
+        if (isBigAuthor(authorId)) {
+            pullOnly.increment();
+            return;
+        }
+        long lastId = 0;
+        while (true) {
+            List<Follow> follows = followMapper.selectList(new QueryWrapper<Follow>()
+                    .select("id", "user_id")
+                    .eq("follow_user_id", authorId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + pageSize));
+            if (follows.isEmpty()) {
+                return;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Follow follow : follows) {
+                    byte[] key = (RedisConstants.FEED_KEY + follow.getUserId()).getBytes(StandardCharsets.UTF_8);
+                    connection.zSetCommands().zAdd(key, time, member);
+                    connection.zSetCommands().zRemRange(key, 0, -(inboxMaxSize + 1));
+                }
+                return null;
+            });
+            pushed.increment(follows.size());
+            if (follows.size() < pageSize) {
+                return;
+            }
+            lastId = follows.get(follows.size() - 1).getId();
+        }
+    }
+
+    /**
+     * 粉丝数达到阈值的作者加入feed:big,之后一直保持大V身份
+     * 粉丝数回落后如果恢复推送,大V期间的笔记不在粉丝收件箱中,只能从发件箱拉取
+     * 刚成为大V时粉丝收件箱中已推送的笔记同时在发件箱中,由FeedTimeline归并时去重
+     */
+    private boolean isBigAuthor(Long authorId) {
+        String id = authorId.toString();
+        if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(RedisConstants.FEED_BIG_AUTHORS_KEY, id))) {
+            return true;
+        }
+        Integer followers = followMapper.selectCount(new QueryWrapper<Follow>().eq("follow_user_id", authorId));
+        if (followers == null || followers < bigAuthorThreshold) {
+            return false;
+        }
+        stringRedisTemplate.opsForSet().add(RedisConstants.FEED_BIG_AUTHORS_KEY, id);
+        log.info("作者{}的粉丝数{}达到{},笔记改为只写发件箱", authorId, followers, bigAuthorThreshold);
+        return true;
+    }
+
+    /**
+     * 认领长时间未确认的推送任务,超过投递次数的直接确认丢弃
+     * 同时裁剪已经确认并超过保留时间的推送任务
+     */
+    @Scheduled(fixedDelayString = "${hmdp.feed.fanout.reclaim-millis:30000}")
+    public void reclaimPending() {
+        fanoutConsumer.reclaimPending();
+    }
+}
@@ -0,0 +1,116 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * 关注流读取,推拉结合
+ * 普通作者的笔记由FeedFanout推送到粉丝收件箱 feed:{userId}
+ * 大V(feed:big)的笔记只写入自己的发件箱 feed:out:{authorId},读取时和收件箱按时间多路归并
+ * 归并结果的顺序与单个zset的ZREVRANGEBYSCORE一致(分数倒序,分数相同按成员倒序),minTime和offset的用法不变
+ */
+@Component
+public class FeedTimeline {
+
+    //与ZREVRANGEBYSCORE相同的顺序,成员都是数字id,字符串比较与redis的字节比较一致
+    private static final Comparator<ZSetOperations.TypedTuple<String>> ORDER =
+            Comparator.comparing(ZSetOperations.TypedTuple<String>::getScore, Comparator.reverseOrder())
+                    .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 按时间倒序滚动读取关注流
+     * 语义与 ZREVRANGEBYSCORE feed:{userId} max 0 WITHSCORES LIMIT offset count 相同
+     * @param max 上一页最小的时间戳,第一页为当前时间
+     * @param offset 上一页中与max相同的条数,第一页为0
+     * @param count 每页条数
+     */
+    public List<ZSetOperations.TypedTuple<String>> scroll(Long userId, long max, int offset, int count) {
+        String inbox = RedisConstants.FEED_KEY + userId;
+        //关注的大V SINTER follows:{userId} feed:big
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().intersect(RedisConstants.FOLLOWS_KEY + userId, RedisConstants.FEED_BIG_AUTHORS_KEY);
+        if (bigAuthors == null || bigAuthors.isEmpty()) {
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(inbox, 0, max, offset, count);
+            return tuples == null ? new ArrayList<>() : new ArrayList<>(tuples);
+        }
+        List<String> keys = new ArrayList<>(bigAuthors.size() + 1);
+        keys.add(inbox);
+        for (String authorId : bigAuthors) {
+            keys.add(RedisConstants.FEED_OUTBOX_KEY + authorId);
+        }
+        //跳过的offset条可能全部来自同一个来源,每个来源读取前offset+count条
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zRevRangeByScoreWithScores(key.getBytes(StandardCharsets.UTF_8), 0, max, 0, offset + count);
+            }
+            return null;
+        });
+        return merge(results, offset, count);
+    }
+
+    /**
+     * 多路归并,跳过前offset条后取count条
+     * 大V变成大V之前推送过的笔记同时在收件箱和发件箱中,分数和成员相同,归并时相邻,只保留一条
+     */
+    @SuppressWarnings("unchecked")
+    static List<ZSetOperations.TypedTuple<String>> merge(List<Object> sources, int offset, int count) {
+        PriorityQueue<Source> queue = new PriorityQueue<>(Math.max(1, sources.size()), Comparator.comparing(s -> s.head, ORDER));
+        for (Object source : sources) {
+            if (source instanceof Collection && !((Collection<?>) source).isEmpty()) {
+                queue.add(new Source(((Collection<ZSetOperations.TypedTuple<String>>) source).iterator()));
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> page = new ArrayList<>(count);
+        ZSetOperations.TypedTuple<String> last = null;
+        int skipped = 0;
+        while (!queue.isEmpty() && page.size() < count) {
+            Source source = queue.poll();
+            ZSetOperations.TypedTuple<String> tuple = source.head;
+            if (source.next()) {
+                queue.add(source);
+            }
+            if (last != null && ORDER.compare(last, tuple) == 0) {
+                continue;
+            }
+            last = tuple;
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            page.add(tuple);
+        }
+        return page;
+    }
+
+    private static final class Source {
+        private final Iterator<ZSetOperations.TypedTuple<String>> iterator;
+        private ZSetOperations.TypedTuple<String> head;
+
+        private Source(Iterator<ZSetOperations.TypedTuple<String>> iterator) {
+            this.iterator = iterator;
+            this.head = iterator.next();
+        }
+
+        private boolean next() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            head = iterator.next();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一id生成器
+ * hmdp.id.strategy=redis 使用redis计数器(RedisIdWorker),snowflake 使用本地雪花算法(SnowflakeIdWorker)
+ */
+public interface IdGenerator {
+
+    /**
+     * 获取id
+     * @param keyPrefix 业务前缀
+     * @return 全局唯一id
+     */
+    Long nextId(String keyPrefix);
+}
@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * json编解码,和原来JSONUtil直接存取的格式一致,带逻辑过期的数据保存为RedisData
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    private static final String EXPIRE_FIELD = "expireTime";
+    private static final String DATA_FIELD = "data";
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return true;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, long expireMillis) {
+        RedisData redisData = RedisData.builder()
+                .data(value)
+                .expireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()))
+                .build();
+        return encode(redisData);
+    }
+
+    @Override
+    public long readExpire(byte[] bytes) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        if (!isRedisData(json)) {
+            return 0;
+        }
+        LocalDateTime expireTime = json.toBean(RedisData.class).getExpireTime();
+        return expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        if (isRedisData(json)) {
+            //逻辑过期的数据,取出data再转换
+            return JSONUtil.toBean(json.getJSONObject(DATA_FIELD), type);
+        }
+        return JSONUtil.toBean(json, type);
+    }
+
+    private boolean isRedisData(JSONObject json) {
+        return json.size() == 2 && json.containsKey(EXPIRE_FIELD) && json.containsKey(DATA_FIELD);
+    }
+}
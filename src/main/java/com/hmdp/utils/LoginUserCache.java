@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 登录用户的本地缓存,token到UserDTO
+ * 1.命中时不访问redis,也不做反射拷贝
+ * 2.未命中时一次管道执行HGETALL和PTTL,记下token在redis中的过期时间
+ * 3.剩余有效期低于refresh-ratio时才续期,续期后本节点在一个窗口内不会再发EXPIRE
+ * 4.登出或用户信息变更时通过发布订阅通知所有节点删除本地副本,漏掉的消息最多影响ttl-seconds
+ */
+@Component
+public class LoginUserCache {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final CacheMetrics.Prefix meters;
+
+    /**
+     * token完整有效期
+     */
+    private final long tokenTtlMillis;
+
+    /**
+     * 剩余有效期低于这个值时续期
+     */
+    private final long refreshBelowMillis;
+
+    private final Cache<String, LoginUser> localCache;
+
+    public LoginUserCache(StringRedisTemplate stringRedisTemplate,
+                          CacheMetrics cacheMetrics,
+                          @Value("${hmdp.login.cache.maximum-size:100000}") long maximumSize,
+                          @Value("${hmdp.login.cache.ttl-seconds:300}") long ttlSeconds,
+                          @Value("${hmdp.login.refresh-ratio:0.9}") double refreshRatio) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meters = cacheMetrics.of(RedisConstants.LOGIN_USER_KEY);
+        this.tokenTtlMillis = TimeUnit.DAYS.toMillis(RedisConstants.LOGIN_USER_TTL);
+        this.refreshBelowMillis = (long) (tokenTtlMillis * refreshRatio);
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 本地缓存中的登录用户,expireMillis为token在redis中的过期时间
+     */
+    private static final class LoginUser {
+        private final UserDTO user;
+        private volatile long expireMillis;
+
+        private LoginUser(UserDTO user, long expireMillis) {
+            this.user = user;
+            this.expireMillis = expireMillis;
+        }
+    }
+
+    /**
+     * 根据token获取登录用户,必要时续期
+     * @param token 请求头中的token
+     * @return 登录用户,token不存在或已过期返回null
+     */
+    public UserDTO get(String token) {
+        LoginUser loginUser = localCache.getIfPresent(token);
+        if (loginUser != null) {
+            meters.localHit();
+        } else {
+            meters.localMiss();
+            //同一个token并发的请求只加载一次,不存在的token不缓存
+            loginUser = localCache.get(token, this::load);
+            if (loginUser == null) {
+                return null;
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (loginUser.expireMillis - now < refreshBelowMillis) {
+            //先更新本地记录,并发的请求不会重复续期
+            loginUser.expireMillis = now + tokenTtlMillis;
+            stringRedisTemplate.expire(RedisConstants.LOGIN_USER_KEY + token, RedisConstants.LOGIN_USER_TTL, TimeUnit.DAYS);
+        }
+        return loginUser.user;
+    }
+
+    private LoginUser load(String token) {
+        byte[] key = (RedisConstants.LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hashCommands().hGetAll(key);
+            connection.keyCommands().pTtl(key);
+            return null;
+        });
+        Map<?, ?> userMap = (Map<?, ?>) results.get(0);
+        if (userMap == null || userMap.isEmpty()) {
+            meters.redisMiss();
+            return null;
+        }
+        meters.redisHit();
+        Long ttl = (Long) results.get(1);
+        //没有过期时间(-1)时按已到期处理,下一次访问立即设置
+        long expireMillis = System.currentTimeMillis() + (ttl == null || ttl < 0 ? 0 : ttl);
+        return new LoginUser(BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false), expireMillis);
+    }
+
+    /**
+     * 删除token对应的本地缓存,并通知所有节点删除
+     * @param token 登出的token或用户信息已变更的token
+     */
+    public void invalidate(String token) {
+        localCache.invalidate(token);
+        stringRedisTemplate.convertAndSend(RedisConstants.LOGIN_INVALIDATE_CHANNEL, token);
+    }
+
+    /**
+     * 只删除本节点的本地缓存,由失效消息的监听器调用
+     * @param token token
+     */
+    public void evictLocal(String token) {
+        localCache.invalidate(token);
+    }
+}
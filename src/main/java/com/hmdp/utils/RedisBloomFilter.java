@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于redis bitmap的布隆过滤器,可选保留一份本地副本
+ * 有本地副本时查询只读本地,新增的id先写redis再通过发布订阅同步到各节点,定时全量刷新兜底
+ */
+public class RedisBloomFilter {
+
+    private final String name;
+    private final byte[] rawKey;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final BloomFilter local;
+    private final boolean localCopy;
+
+    /**
+     * 是否已经完成初始化,初始化前所有id都放行
+     */
+    private volatile boolean ready;
+    private volatile double fpp;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    public RedisBloomFilter(String name, StringRedisTemplate stringRedisTemplate,
+                            long expectedInsertions, double fpp, boolean localCopy) {
+        this.name = name;
+        this.rawKey = (RedisConstants.BLOOM_KEY + name).getBytes(StandardCharsets.UTF_8);
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.local = BloomFilter.create(expectedInsertions, fpp);
+        this.localCopy = localCopy;
+    }
+
+    /**
+     * 新增一个id,写入redis后更新本地副本
+     */
+    public void add(long id) {
+        long[] offsets = local.offsets(id);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+        local.put(id);
+    }
+
+    /**
+     * 批量新增,一次管道写入
+     */
+    public void addAll(Collection<Long> ids) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long id : ids) {
+                for (long offset : local.offsets(id)) {
+                    connection.setBit(rawKey, offset, true);
+                }
+            }
+            return null;
+        });
+        ids.forEach(local::put);
+    }
+
+    /**
+     * 只更新本地副本,用于接收其他节点的新增通知
+     */
+    public void addLocal(long id) {
+        local.put(id);
+    }
+
+    /**
+     * 判断id是否可能存在,返回false时一定不存在
+     */
+    public boolean mightContain(long id) {
+        if (!ready) {
+            return true;
+        }
+        boolean contains = localCopy ? local.mightContain(id) : mightContainInRedis(id);
+        if (!contains) {
+            rejected.incrementAndGet();
+        }
+        return contains;
+    }
+
+    private boolean mightContainInRedis(long id) {
+        long[] offsets = local.offsets(id);
+        List<Object> bits = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.getBit(rawKey, offset);
+            }
+            return null;
+        });
+        for (Object bit : bits) {
+            if (!Boolean.TRUE.equals(bit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 从redis刷新本地副本并重新估算误判率
+     */
+    public void refresh() {
+        Long bitCount = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.bitCount(rawKey));
+        fpp = local.estimateFpp(bitCount == null ? 0 : bitCount);
+        if (localCopy) {
+            byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+            if (bytes != null) {
+                local.load(bytes);
+            }
+        }
+    }
+
+    /**
+     * 布隆过滤器放行但数据库查不到,记一次误判
+     */
+    public void recordFalsePositive() {
+        falsePositives.incrementAndGet();
+    }
+
+    public void markReady() {
+        this.ready = true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * redis中bitmap的key
+     */
+    public String getKey() {
+        return RedisConstants.BLOOM_KEY + name;
+    }
+
+    /**
+     * 过滤器的大小,记录在初始化完成标记中,配置变化后重新初始化
+     */
+    public String getSizing() {
+        return local.getSizing();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 按置位比例估算的误判率
+     */
+    public double getFpp() {
+        return fpp;
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.get();
+    }
+}
@@ -5,6 +5,10 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 10L;
+    //登录用户失效通知,消息体为token
+    public static final String LOGIN_INVALIDATE_CHANNEL = "login:invalidate";
+    //已吊销的签名token,成员为token的随机数,分数为token过期时间
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
     public static final Long CACHE_SHOP_TYPE_TTL = 30L;
 
     public static final Long CACHE_NULL_TTL = 2L;
@@ -12,14 +16,62 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final Long CACHE_BLOG_TTL = 10L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String LOCK_CACHE_KEY = "lock:cache:";
+    public static final Long LOCK_CACHE_WAIT = 3L;
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_VOUCHERS_KEY = "seckill:vouchers";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_CLEAR_CHANNEL = "seckill:clear";
+    public static final String STREAM_ORDERS_KEY = "stream.orders";
+    public static final String STREAM_ORDERS_GROUP = "g1";
+    public static final String STREAM_ORDERS_DLQ_KEY = "stream.orders.dlq";
+    //订单转入死信队列的用户,对账时这些用户没有数据库订单也算已处理
+    public static final String SECKILL_DEAD_KEY = "seckill:dead:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    //还没有写回tb_blog的点赞数增量,field为笔记id
+    public static final String BLOG_LIKE_DELTA_KEY = "blog:like:delta";
+    //正在写回的增量快照,写回中途宕机时下一次先处理这里
+    public static final String BLOG_LIKE_FLUSHING_KEY = "blog:like:delta:flushing";
+    public static final String LOCK_BLOG_LIKE_FLUSH_KEY = "lock:blog:like:flush";
+    //热门笔记排行,分数为随时间衰减的点赞数
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    //热门排行分数的基准时间,导入完成后才存在
+    public static final String BLOG_HOT_EPOCH_KEY = "blog:hot:epoch";
+    public static final String LOCK_BLOG_HOT_KEY = "lock:blog:hot";
     public static final String FEED_KEY = "feed:";
+    //作者自己的发件箱,大V的笔记只写这里,由粉丝读取时拉取
+    public static final String FEED_OUTBOX_KEY = "feed:out:";
+    //粉丝数超过阈值的作者id
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:big";
+    public static final String FOLLOWS_KEY = "follows:";
+    //笔记推送任务
+    public static final String STREAM_FEED_KEY = "stream.feed";
+    public static final String STREAM_FEED_GROUP = "g1";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    //签到bitmap归档完成的标记,后缀为yyyyMM,不能以sign:开头,避免被SCAN sign:*:yyyyMM匹配
+    public static final String SIGN_COMPACTED_KEY = "compacted:sign:";
+    public static final String LOCK_SIGN_COMPACT_KEY = "lock:sign:compact:";
+
+    public static final String ID_WORKER_KEY = "id:worker:";
 
     public static final String CACHE_TYPE_KEY="cache:type:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    public static final String LOCK_BLOOM_SEED_KEY = "lock:bloom:seed:";
 }
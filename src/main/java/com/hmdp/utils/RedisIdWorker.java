@@ -1,19 +1,32 @@
 package com.hmdp.utils;
 
-import org.springframework.beans.factory.annotation.Autowired;
+import cn.hutool.core.thread.ThreadUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.Resource;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * redis实现全局唯一id
  */
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
     /**
      * 初始时间戳
      */
@@ -22,26 +35,204 @@ public class RedisIdWorker {
      * 序列化位数
      */
     private static final Integer COUNT_BITS=32;
+    /**
+     * 时间戳最多30位,最高的第62位留给雪花id的标志位,保证两种策略的id不重复
+     */
+    static final long MAX_TIMESTAMP=(1L<<30)-1;
+
+    private static final DateTimeFormatter DAY_FORMATTER=DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 号段模式:每次从redis申请一段序列号,在本地分配,用到一定比例时后台预取下一段
+     */
+    private final boolean segmentEnabled;
+
+    /**
+     * 每段序列号的数量
+     */
+    private final long segmentSize;
+
+    private final MeterRegistry meterRegistry;
 
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         MeterRegistry meterRegistry,
+                         @Value("${hmdp.id.segment.enabled:true}") boolean segmentEnabled,
+                         @Value("${hmdp.id.segment.size:1000}") long segmentSize) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.segmentEnabled = segmentEnabled;
+        this.segmentSize = segmentSize;
+    }
+
+    private final Map<String, SegmentBuffer> buffers=new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor=Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("id-segment-", true));
+
+    /**
+     * 缓存的日期,跨天时才重新计算,避免每次生成id都格式化日期
+     */
+    private volatile Day day=Day.of(System.currentTimeMillis());
 
     /**
      * 获取id
      * 不直接使用Redis自增的数值，而是拼接一些其它信息：
      * ID的组成部分：符号位：1bit，永远为0
-     * 时间戳：31bit，以秒为单位，可以使用69年
-     * 序列号：32bit，秒内的计数器，支持每秒产生2^32个不同ID
+     * 时间戳：31bit，以秒为单位，最高位永远为0(留给SnowflakeIdWorker的标志位)，可以使用34年
+     * 序列号：32bit，当天的计数器，支持每天产生2^32个不同ID
      * @param keyPrefix 业务前缀
      * @return
      */
+    @Override
     public Long nextId(String keyPrefix){
-        LocalDateTime now=LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowMillis=System.currentTimeMillis();
+        Day today=this.day;
+        if(nowMillis>=today.endMillis){
+            today=Day.of(nowMillis);
+            this.day=today;
+        }
+        //与LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)一致,保证和以前生成的id连续
+        long nowSecond=nowMillis/1000+today.offsetSeconds;
         long timeStamp=nowSecond-BEGIN_TIMESTAMP;
-        //获取当前日期,精确到天
-        String today=now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + today);
+        if(timeStamp>MAX_TIMESTAMP){
+            throw new IllegalStateException("时间戳超出30位,会与雪花id重复");
+        }
+        long count;
+        if(segmentEnabled&&segmentSize>1){
+            count=buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(today.key);
+        }else{
+            count=stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, today.key));
+        }
+        return compose(timeStamp, count);
+    }
+
+    static long compose(long timeStamp, long count){
         return timeStamp<<COUNT_BITS|count;
     }
+
+    private static String counterKey(String keyPrefix, String day){
+        return "icr:" + keyPrefix + ":" + day;
+    }
+
+    @PreDestroy
+    private void destroy(){
+        prefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * 当前日期及其结束时间
+     */
+    private static final class Day {
+        private final String key;
+        private final long endMillis;
+        private final long offsetSeconds;
+
+        private Day(String key, long endMillis, long offsetSeconds) {
+            this.key = key;
+            this.endMillis = endMillis;
+            this.offsetSeconds = offsetSeconds;
+        }
+
+        private static Day of(long nowMillis){
+            ZoneId zone=ZoneId.systemDefault();
+            LocalDate date=LocalDateTime.ofInstant(Instant.ofEpochMilli(nowMillis), zone).toLocalDate();
+            long endMillis=date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            ZoneOffset offset=zone.getRules().getOffset(Instant.ofEpochMilli(nowMillis));
+            return new Day(date.format(DAY_FORMATTER), endMillis, offset.getTotalSeconds());
+        }
+    }
+
+    /**
+     * 一段序列号[next,end],属于某一天的计数器
+     */
+    private static final class Segment {
+        private final String day;
+        private final AtomicLong next;
+        private final long end;
+
+        private Segment(String day, long start, long end) {
+            this.day = day;
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段,当前段用完剩余20%时预取下一段,当前段用完后切换
+     * 跨天时丢弃前一天剩余的号段,同一天的计数器不会重复,保证id唯一
+     * id.segment.fetch{mode=sync}出现说明预取赶不上消耗,请求线程在等redis,需要调大号段
+     */
+    private final class SegmentBuffer {
+        private final String keyPrefix;
+        private final Timer prefetchLatency;
+        private final Timer syncLatency;
+        private volatile Segment current;
+        private CompletableFuture<Segment> prefetched;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+            this.prefetchLatency = fetchTimer(keyPrefix, "prefetch");
+            this.syncLatency = fetchTimer(keyPrefix, "sync");
+        }
+
+        private Timer fetchTimer(String keyPrefix, String mode){
+            return Timer.builder("id.segment.fetch")
+                    .description("申请号段的耗时")
+                    .tag("prefix", keyPrefix)
+                    .tag("mode", mode)
+                    .register(meterRegistry);
+        }
+
+        private long next(String day){
+            while (true) {
+                Segment segment=current;
+                if(segment!=null&&segment.day.equals(day)){
+                    long value=segment.next.getAndIncrement();
+                    if(value<=segment.end){
+                        //getAndIncrement保证只有一个线程拿到这个值,只触发一次预取
+                        if(segment.end-value==segmentSize/5){
+                            prefetch(day);
+                        }
+                        return value;
+                    }
+                }
+                synchronized (this){
+                    if(current==segment){
+                        current=takeNext(day);
+                    }
+                }
+            }
+        }
+
+        private synchronized void prefetch(String day){
+            if(prefetched==null){
+                prefetched=CompletableFuture.supplyAsync(() -> fetch(day, prefetchLatency), prefetchExecutor);
+            }
+        }
+
+        //在synchronized中调用
+        private Segment takeNext(String day){
+            CompletableFuture<Segment> future=prefetched;
+            prefetched=null;
+            if(future!=null){
+                try {
+                    Segment segment=future.join();
+                    if(segment.day.equals(day)){
+                        return segment;
+                    }
+                } catch (Exception ignored) {
+                    //预取失败,同步申请
+                }
+            }
+            return fetch(day, syncLatency);
+        }
+
+        private Segment fetch(String day, Timer latency){
+            long start=System.nanoTime();
+            Long end=stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, day), segmentSize);
+            latency.record(System.nanoTime()-start, TimeUnit.NANOSECONDS);
+            return new Segment(day, end-segmentSize+1, end);
+        }
+    }
 }
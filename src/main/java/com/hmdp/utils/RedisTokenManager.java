@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.core.lang.UUID;
+import com.hmdp.dto.UserDTO;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * token为随机uuid,用户信息保存在redis的hash中 login:token:{token}
+ * 解析时先查本节点的LoginUserCache
+ */
+@Component
+public class RedisTokenManager implements TokenManager {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final LoginUserCache loginUserCache;
+
+    public RedisTokenManager(StringRedisTemplate stringRedisTemplate, LoginUserCache loginUserCache) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.loginUserCache = loginUserCache;
+    }
+
+    @Override
+    public String issue(UserDTO user) {
+        //将dto转换为map,并将id为long类型转换为string
+        Map<String, Object> map = BeanUtil.beanToMap(user, new HashMap<>(),
+                CopyOptions.create().setIgnoreNullValue(true).setFieldValueEditor((fieldName, fieldVal) -> fieldVal == null ? null : fieldVal.toString()));
+        //生成token作为redis的key
+        String token = UUID.randomUUID().toString(true);
+        String tokenKey = RedisConstants.LOGIN_USER_KEY + token;
+        //存储
+        stringRedisTemplate.opsForHash().putAll(tokenKey, map);
+        //设置有效期
+        stringRedisTemplate.expire(tokenKey, RedisConstants.LOGIN_USER_TTL, TimeUnit.DAYS);
+        return token;
+    }
+
+    @Override
+    public UserDTO resolve(String token) {
+        return loginUserCache.get(token);
+    }
+
+    @Override
+    public void revoke(String token) {
+        stringRedisTemplate.delete(RedisConstants.LOGIN_USER_KEY + token);
+        loginUserCache.invalidate(token);
+    }
+
+    @Override
+    public void onRemoteRevoke(String token) {
+        loginUserCache.evictLocal(token);
+    }
+}
@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本节点已售罄的秒杀券
+ * 秒杀脚本返回库存不足时标记并广播给其他节点,之后的请求直接在内存中拒绝,不再生成订单id和执行脚本
+ * 库存只减不增,标记后不需要撤销,秒杀券对账结束后广播清除
+ */
+@Component
+public class SeckillSoldOut {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+
+    public SeckillSoldOut(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.contains(voucherId);
+    }
+
+    /**
+     * 标记售罄并通知其他节点,同一张券只广播一次
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.add(voucherId)) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 收到其他节点的售罄消息
+     */
+    public void onRemoteSoldOut(String message) {
+        soldOut.add(Long.valueOf(message));
+    }
+
+    /**
+     * 秒杀券对账结束,通知所有节点(包括本节点)清除售罄标记和缓存的分片数
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_CLEAR_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 收到对账结束的消息
+     */
+    public void onRemoteClear(String message) {
+        soldOut.remove(Long.valueOf(message));
+    }
+}
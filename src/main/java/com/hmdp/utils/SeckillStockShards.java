@@ -0,0 +1,199 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀库存分片
+ * 一张优惠券的库存拆分到K个分片,分片i的库存、下单用户集合和订单stream使用同一个hash tag {i},
+ * 在redis集群中落在同一个slot,单个分片的lua脚本不会跨slot;不同分片落在不同slot,分散热点
+ * 每个用户固定属于一个分片(userId%K),一人一单只在这个分片的用户集合中判断
+ */
+@Component
+public class SeckillStockShards {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //新建秒杀券使用的分片数,也是订单stream的数量,只能增大不能减小,否则旧分片的订单没有消费者
+    private final int shards;
+
+    //优惠券创建后分片数不再变化,缓存在本地
+    private final Map<Long, Integer> shardsOfVoucher = new ConcurrentHashMap<>();
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate,
+                              @Value("${hmdp.seckill.shards:4}") int shards) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.shards = Math.max(1, shards);
+    }
+
+    public int shards() {
+        return shards;
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + shard + "}:" + voucherId;
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + shard + "}:" + voucherId;
+    }
+
+    public static String streamKey(int shard) {
+        return RedisConstants.STREAM_ORDERS_KEY + ":{" + shard + "}";
+    }
+
+    public List<String> streamKeys() {
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(streamKey(i));
+        }
+        return keys;
+    }
+
+    /**
+     * 用户所属的分片,一人一单在这个分片判断
+     */
+    public static int homeShard(Long userId, int shards) {
+        return (int) Math.floorMod(userId, (long) shards);
+    }
+
+    /**
+     * 把库存平均分配到各个分片,并登记结束时间用于对账
+     */
+    public void init(Long voucherId, int stock, LocalDateTime endTime) {
+        writeShards(voucherId, stock, endTime);
+        shardsOfVoucher.put(voucherId, shards);
+    }
+
+    /**
+     * 分片之前创建的秒杀券只有 seckill:stock:{voucherId} 和 seckill:order:{voucherId},迁移到分片中
+     * 1.取走旧库存,旧版本节点之后会按库存不足处理,不会超卖
+     * 2.已下单用户加入各自所属分片的用户集合,一人一单继续有效
+     * 3.写入分片库存和分片数,失败时恢复旧库存,下次启动重新迁移
+     * 调用方需要保证同一张券同一时间只有一个节点迁移
+     * @return 是否迁移了
+     */
+    public boolean migrateLegacy(Long voucherId, LocalDateTime endTime) {
+        String legacyStockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
+        String legacyOrderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.SECKILL_SHARDS_KEY + voucherId))
+                || !Boolean.TRUE.equals(stringRedisTemplate.hasKey(legacyStockKey))) {
+            return false;
+        }
+        String stock = stringRedisTemplate.opsForValue().getAndDelete(legacyStockKey);
+        if (stock == null) {
+            return false;
+        }
+        try {
+            Set<String> users = stringRedisTemplate.opsForSet().members(legacyOrderKey);
+            if (users != null && !users.isEmpty()) {
+                Map<Integer, List<String>> byShard = new HashMap<>();
+                for (String user : users) {
+                    byShard.computeIfAbsent(homeShard(Long.valueOf(user), shards), k -> new ArrayList<>()).add(user);
+                }
+                byShard.forEach((shard, members) ->
+                        stringRedisTemplate.opsForSet().add(orderKey(voucherId, shard), members.toArray(new String[0])));
+            }
+            writeShards(voucherId, Math.max(0, Integer.parseInt(stock)), endTime);
+        } catch (RuntimeException e) {
+            stringRedisTemplate.opsForValue().set(legacyStockKey, stock);
+            throw e;
+        }
+        stringRedisTemplate.delete(legacyOrderKey);
+        return true;
+    }
+
+    /**
+     * 分片数最后写入,写入之前shardsOf返回0,请求按库存不足处理
+     */
+    private void writeShards(Long voucherId, int stock, LocalDateTime endTime) {
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+        long end = endTime == null ? Long.MAX_VALUE : endTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        stringRedisTemplate.opsForZSet().add(RedisConstants.SECKILL_VOUCHERS_KEY, voucherId.toString(), end);
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+    }
+
+    /**
+     * 优惠券的分片数,不是秒杀券或者已经对账结束返回0
+     */
+    public int shardsOf(Long voucherId) {
+        Integer cached = shardsOfVoucher.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        String value = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        if (value == null) {
+            return 0;
+        }
+        int k = Integer.parseInt(value);
+        shardsOfVoucher.put(voucherId, k);
+        return k;
+    }
+
+    /**
+     * 所有分片剩余库存之和
+     */
+    public int remainingStock(Long voucherId, int k) {
+        List<String> keys = new ArrayList<>(k);
+        for (int i = 0; i < k; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        int sum = 0;
+        if (values != null) {
+            for (String value : values) {
+                sum += value == null ? 0 : Integer.parseInt(value);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 所有分片已下单的用户数
+     */
+    public long orderedUsers(Long voucherId, int k) {
+        long sum = 0;
+        for (int i = 0; i < k; i++) {
+            Long size = stringRedisTemplate.opsForSet().size(orderKey(voucherId, i));
+            sum += size == null ? 0 : size;
+        }
+        return sum;
+    }
+
+    /**
+     * 秒杀结束对账完成后删除分片数据
+     */
+    public void clear(Long voucherId, int k) {
+        List<String> keys = new ArrayList<>(2 * k + 1);
+        for (int i = 0; i < k; i++) {
+            keys.add(stockKey(voucherId, i));
+            keys.add(orderKey(voucherId, i));
+        }
+        keys.add(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        //逐个删除,集群模式下多key的DEL不能跨slot
+        for (String key : keys) {
+            stringRedisTemplate.delete(key);
+        }
+        evictLocal(voucherId);
+    }
+
+    /**
+     * 删除本地缓存的分片数,对账结束时由SeckillSoldOut的清除消息在每个节点调用
+     */
+    public void evictLocal(Long voucherId) {
+        shardsOfVoucher.remove(voucherId);
+    }
+}
@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按商铺类型划分的GEO索引 shop:geo:{typeId},成员为商铺id
+ */
+@Component
+public class ShopGeoIndex {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    public static String key(Long typeId) {
+        return RedisConstants.SHOP_GEO_KEY + typeId;
+    }
+
+    /**
+     * 一次管道写入或更新商铺坐标,没有类型或坐标的商铺跳过
+     * @param shops 需要包含id、typeId、x、y
+     */
+    public void addAll(Collection<Shop> shops) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : shops) {
+                if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                    continue;
+                }
+                connection.geoCommands().geoAdd(key(shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                        new Point(shop.getX(), shop.getY()), shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 从某个类型的索引中删除商铺,商铺类型变更时调用
+     */
+    public void remove(Long typeId, Long shopId) {
+        stringRedisTemplate.opsForGeo().remove(key(typeId), shopId.toString());
+    }
+
+    /**
+     * 按距离由近到远查询某个类型的商铺
+     * GEOSEARCH shop:geo:{typeId} FROMLONLAT x y BYRADIUS radius m ASC COUNT from+count WITHDIST
+     * GEOSEARCH不支持偏移,取前from+count条后跳过前from条
+     * @param radiusMeters 半径,单位米
+     * @param from 跳过的条数
+     * @param count 返回的条数
+     * @return 商铺id到距离(米)的映射,按距离升序
+     */
+    public Map<Long, Double> search(Long typeId, double x, double y, double radiusMeters, int from, int count) {
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
+                key(typeId),
+                GeoReference.fromCoordinate(x, y),
+                new Distance(radiusMeters, RedisGeoCommands.DistanceUnit.METERS),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending().limit(from + count));
+        Map<Long, Double> distances = new LinkedHashMap<>();
+        if (results == null) {
+            return distances;
+        }
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = results.getContent();
+        for (int i = from; i < content.size(); i++) {
+            GeoResult<RedisGeoCommands.GeoLocation<String>> result = content.get(i);
+            distances.put(Long.valueOf(result.getContent().getName()), result.getDistance().getValue());
+        }
+        return distances;
+    }
+}
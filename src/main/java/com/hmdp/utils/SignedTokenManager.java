@@ -0,0 +1,284 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 签名token,用户信息放在token中,解析时只在本地验证签名,不访问redis
+ * 格式:base64url(载荷).base64url(HMAC-SHA256(载荷)的前16字节)
+ * 载荷:版本(1字节) 用户id(8字节) 过期时间秒(8字节) 随机数(8字节) 昵称 头像(可以为null)
+ * 吊销:随机数作为token的唯一标识写入 login:revoked(zset,分数为token过期时间)
+ * 每个节点用本地布隆过滤器保存已吊销的标识,过滤器判断可能吊销时才查redis
+ * 签名token无法续期,到期后需要重新登录
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.login.token.mode", havingValue = "signed")
+public class SignedTokenManager implements TokenManager {
+
+    private static final byte VERSION = 1;
+
+    private static final int MAC_BYTES = 16;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final SecretKeySpec key;
+
+    /**
+     * Mac不是线程安全的,每个线程一个
+     */
+    private final ThreadLocal<Mac> macs;
+
+    private final long revokedExpected;
+
+    private final double revokedFpp;
+
+    /**
+     * 已吊销token的本地过滤器,定期从redis重建以清除已过期的标识
+     */
+    private volatile BloomFilter revoked;
+
+    /**
+     * 重建中的过滤器,重建期间收到的吊销消息同时写入,避免丢失
+     */
+    private volatile BloomFilter building;
+
+    /**
+     * 第一次从redis加载完成前,每次都查redis
+     */
+    private volatile boolean revokedLoaded;
+
+    public SignedTokenManager(StringRedisTemplate stringRedisTemplate,
+                              @Value("${hmdp.login.token.secret:}") String secret,
+                              @Value("${hmdp.login.token.revoked-expected:100000}") long revokedExpected,
+                              @Value("${hmdp.login.token.revoked-fpp:0.001}") double revokedFpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.revokedExpected = revokedExpected;
+        this.revokedFpp = revokedFpp;
+        this.revoked = BloomFilter.create(revokedExpected, revokedFpp);
+        byte[] secretBytes;
+        if (StrUtil.isBlank(secret)) {
+            log.warn("没有配置hmdp.login.token.secret,使用随机密钥,重启后或者在其他节点上token都会失效");
+            secretBytes = new byte[32];
+            new SecureRandom().nextBytes(secretBytes);
+        } else {
+            secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        this.key = new SecretKeySpec(secretBytes, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * token中的用户信息
+     */
+    private static final class Claims {
+        private long userId;
+        private long expireSeconds;
+        private long nonce;
+        private String nickName;
+        private String icon;
+    }
+
+    @Override
+    public String issue(UserDTO user) {
+        Claims claims = new Claims();
+        claims.userId = user.getId();
+        claims.expireSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())
+                + TimeUnit.DAYS.toSeconds(RedisConstants.LOGIN_USER_TTL);
+        claims.nonce = ThreadLocalRandom.current().nextLong();
+        claims.nickName = user.getNickName();
+        claims.icon = user.getIcon();
+        byte[] payload = encode(claims);
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    @Override
+    public UserDTO resolve(String token) {
+        Claims claims = verify(token);
+        if (claims == null || isRevoked(claims.nonce)) {
+            return null;
+        }
+        UserDTO user = new UserDTO();
+        user.setId(claims.userId);
+        user.setNickName(claims.nickName);
+        user.setIcon(claims.icon);
+        return user;
+    }
+
+    @Override
+    public void revoke(String token) {
+        Claims claims = verify(token);
+        if (claims == null) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().add(RedisConstants.LOGIN_REVOKED_KEY,
+                String.valueOf(claims.nonce), TimeUnit.SECONDS.toMillis(claims.expireSeconds));
+        addRevoked(claims.nonce);
+        stringRedisTemplate.convertAndSend(RedisConstants.LOGIN_INVALIDATE_CHANNEL, token);
+    }
+
+    @Override
+    public void onRemoteRevoke(String token) {
+        Claims claims = verify(token);
+        if (claims != null) {
+            addRevoked(claims.nonce);
+        }
+    }
+
+    private void addRevoked(long nonce) {
+        revoked.put(nonce);
+        BloomFilter b = building;
+        if (b != null) {
+            b.put(nonce);
+        }
+    }
+
+    /**
+     * 过滤器判断没有吊销的一定没有吊销,可能吊销的再查redis
+     */
+    private boolean isRevoked(long nonce) {
+        if (revokedLoaded && !revoked.mightContain(nonce)) {
+            return false;
+        }
+        return stringRedisTemplate.opsForZSet().score(RedisConstants.LOGIN_REVOKED_KEY, String.valueOf(nonce)) != null;
+    }
+
+    /**
+     * 删除已过期的吊销记录,并重建本地过滤器
+     */
+    @Scheduled(fixedDelayString = "${hmdp.login.token.revoked-refresh-millis:60000}")
+    public void reloadRevoked() {
+        try {
+            stringRedisTemplate.opsForZSet().removeRangeByScore(RedisConstants.LOGIN_REVOKED_KEY, 0, System.currentTimeMillis());
+            Long size = stringRedisTemplate.opsForZSet().zCard(RedisConstants.LOGIN_REVOKED_KEY);
+            BloomFilter filter = BloomFilter.create(Math.max(revokedExpected, size == null ? 0 : size * 2), revokedFpp);
+            building = filter;
+            Set<String> members = stringRedisTemplate.opsForZSet().range(RedisConstants.LOGIN_REVOKED_KEY, 0, -1);
+            if (members != null) {
+                for (String member : members) {
+                    filter.put(Long.parseLong(member));
+                }
+            }
+            revoked = filter;
+            revokedLoaded = true;
+        } catch (Exception e) {
+            log.error("加载已吊销的token失败:", e);
+        } finally {
+            building = null;
+        }
+    }
+
+    private byte[] sign(byte[] payload) {
+        return Arrays.copyOf(macs.get().doFinal(payload), MAC_BYTES);
+    }
+
+    /**
+     * 验证签名和过期时间
+     * @return 用户信息,格式错误、签名不匹配或已过期返回null
+     */
+    private Claims verify(String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        //定长比较,不泄露匹配的前缀长度
+        if (!MessageDigest.isEqual(sign(payload), signature)) {
+            return null;
+        }
+        Claims claims = decode(payload);
+        if (claims == null || TimeUnit.SECONDS.toMillis(claims.expireSeconds) <= System.currentTimeMillis()) {
+            return null;
+        }
+        return claims;
+    }
+
+    private static byte[] encode(Claims claims) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(claims.userId);
+            out.writeLong(claims.expireSeconds);
+            out.writeLong(claims.nonce);
+            writeNullable(out, claims.nickName);
+            writeNullable(out, claims.icon);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Claims decode(byte[] payload) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            Claims claims = new Claims();
+            claims.userId = in.readLong();
+            claims.expireSeconds = in.readLong();
+            claims.nonce = in.readLong();
+            claims.nickName = readNullable(in);
+            claims.icon = readNullable(in);
+            return claims;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -1,36 +1,56 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 public class SimpleRedisLock implements ILock{
 
-    private String name;//业务名称
+    private final String key;
     private StringRedisTemplate stringRedisTemplate;
     private final static String KEY_PRE="lock:";
     private final static String ID_PRE= UUID.randomUUID().toString(true)+"-";
 
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static{
+        UNLOCK_SCRIPT=new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * @param name 业务名称,锁的key为lock:{name}
+     */
     public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
-        this.name = name;
+        this(stringRedisTemplate, KEY_PRE + name);
+    }
+
+    private SimpleRedisLock(StringRedisTemplate stringRedisTemplate, String key) {
+        this.key = key;
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    /**
+     * 使用完整的key创建锁,用于RedisConstants中已经带有lock:前缀的key
+     */
+    public static SimpleRedisLock ofKey(String key, StringRedisTemplate stringRedisTemplate) {
+        return new SimpleRedisLock(stringRedisTemplate, key);
+    }
+
     @Override
     public void unlock() {
-        //判断线程id是否与存入redis中的一致,防止误删其他线程的
-        String id = stringRedisTemplate.opsForValue().get(KEY_PRE + name);
-        String threadId =ID_PRE+ Thread.currentThread().getId();
-        if(threadId.equals(id)){
-            stringRedisTemplate.delete(KEY_PRE+name);
-        }
+        //判断线程id是否与存入redis中的一致,防止误删其他线程的;判断和删除在一个脚本中完成
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), ID_PRE + Thread.currentThread().getId());
     }
 
     @Override
     public boolean tryLock(long timeoutSec) {
         String threadId =ID_PRE+Thread.currentThread().getId();
-        Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(KEY_PRE + name, threadId, timeoutSec, TimeUnit.SECONDS);
+        Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(key, threadId, timeoutSec, TimeUnit.SECONDS);
         return Boolean.TRUE.equals(success);//自动拆箱有空指针的风险,所以这么处理
     }
 }
@@ -0,0 +1,63 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 本节点内的请求合并
+ * 同一个key同时只有一个线程执行加载,其余线程等待同一个CompletableFuture的结果,不轮询不休眠
+ */
+public class SingleFlight {
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 执行加载,同一个key正在加载时直接等待其结果
+     * @param key 键
+     * @param loader 加载函数,只会被第一个到达的线程调用
+     * @return 加载结果,可能为null
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R execute(String key, Supplier<R> loader) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = calls.putIfAbsent(key, call);
+        if (inFlight != null) {
+            return (R) await(inFlight);
+        }
+        try {
+            R r = loader.get();
+            call.complete(r);
+            return r;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            //抛出加载线程的原始异常
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 正在加载的key数量
+     */
+    public int inFlight() {
+        return calls.size();
+    }
+}
@@ -0,0 +1,214 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 雪花算法实现全局唯一id,生成id不访问redis
+ * ID的组成部分：符号位：1bit，永远为0
+ * 标志位：1bit，永远为1,RedisIdWorker生成的id这一位永远为0,两种策略的id不会重复,切换策略后不会复用已有订单的id
+ * 时间戳：40bit，以毫秒为单位，可以使用34年
+ * 机器id：10bit，启动时从redis租用,独立的线程心跳续期,不受其他定时任务耗时的影响
+ * 序列号：12bit，毫秒内的计数器，每毫秒4096个，用完后睡眠到下一毫秒,等待超过max-wait-millis时失败
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.id.strategy", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdGenerator {
+    /**
+     * 初始时间戳,与RedisIdWorker相同
+     */
+    private static final long BEGIN_MILLIS = 1730194431000L;
+    private static final int TIMESTAMP_BITS = 40;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    /**
+     * 雪花id的标志位,所有雪花id都大于RedisIdWorker能生成的最大id
+     */
+    static final long SNOWFLAKE_FLAG = 1L << (TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS);
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('expire', KEYS[1], ARGV[2]) end return 0",
+            Long.class);
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end return 0",
+            Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long leaseSeconds;
+    private final long heartbeatMillis;
+    private final long maxBackwardMillis;
+    private final long maxWaitMillis;
+    private final String token = UUID.randomUUID().toString(true);
+
+    /**
+     * 续期不使用@Scheduled,共用的调度线程被耗时的定时任务占用时租约会过期,导致生成id失败
+     */
+    private final ScheduledExecutorService heartbeatExecutor =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("id-lease-", true));
+
+    /**
+     * 高位是上一次的时间戳(相对BEGIN_MILLIS),低12位是序列号,CAS更新
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    private volatile long workerId = -1;
+    //租约到期时间,续期失败超过这个时间后其他节点可能拿到相同的机器id,停止生成
+    private volatile long leaseDeadline;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate,
+                             @Value("${hmdp.id.snowflake.lease-seconds:60}") long leaseSeconds,
+                             @Value("${hmdp.id.snowflake.heartbeat-millis:10000}") long heartbeatMillis,
+                             @Value("${hmdp.id.snowflake.max-backward-millis:5000}") long maxBackwardMillis,
+                             @Value("${hmdp.id.snowflake.max-wait-millis:100}") long maxWaitMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.leaseSeconds = leaseSeconds;
+        this.heartbeatMillis = heartbeatMillis;
+        this.maxBackwardMillis = maxBackwardMillis;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @PostConstruct
+    void init() {
+        if (!lease()) {
+            throw new IllegalStateException("没有可用的机器id");
+        }
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 从随机位置开始尝试租用一个空闲的机器id
+     */
+    private boolean lease() {
+        int start = ThreadLocalRandom.current().nextInt((int) MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long now = currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(RedisConstants.ID_WORKER_KEY + id, token, leaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                workerId = id;
+                leaseDeadline = now + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                log.info("租用机器id:{}", id);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 心跳续期,租约已经被删除或被其他节点占用时重新租用
+     */
+    void heartbeat() {
+        try {
+            long now = currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId), token, String.valueOf(leaseSeconds));
+            if (renewed != null && renewed == 1) {
+                leaseDeadline = now + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                return;
+            }
+            log.warn("机器id:{}的租约已经失效,重新租用", workerId);
+            if (!lease()) {
+                log.error("没有可用的机器id");
+            }
+        } catch (Exception e) {
+            //redis不可用时继续使用当前机器id,直到租约到期
+            log.error("机器id续期失败:", e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        heartbeatExecutor.shutdownNow();
+        try {
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId), token);
+        } catch (Exception e) {
+            log.warn("释放机器id失败:", e);
+        }
+    }
+
+    @Override
+    public Long nextId(String keyPrefix) {
+        long waited = 0;
+        while (true) {
+            long now = currentTimeMillis();
+            if (now >= leaseDeadline) {
+                throw new IllegalStateException("机器id租约已过期");
+            }
+            long timestamp = now - BEGIN_MILLIS;
+            if (timestamp > MAX_TIMESTAMP) {
+                throw new IllegalStateException("时间戳超出" + TIMESTAMP_BITS + "位");
+            }
+            long last = state.get();
+            long lastTimestamp = last >>> SEQUENCE_BITS;
+            long next;
+            if (timestamp > lastTimestamp) {
+                next = timestamp << SEQUENCE_BITS;
+            } else {
+                //同一毫秒或者时钟回拨,沿用上一次的时间戳继续递增;回拨太多时拒绝生成
+                if (lastTimestamp - timestamp > maxBackwardMillis) {
+                    throw new IllegalStateException("时钟回拨" + (lastTimestamp - timestamp) + "毫秒");
+                }
+                if ((last & SEQUENCE_MASK) == SEQUENCE_MASK) {
+                    //序列号用完,睡眠到时钟超过上一次的时间戳,不能超前使用未来的时间戳;累计等待超过上限时拒绝生成
+                    long waitMillis = lastTimestamp - timestamp + 1;
+                    if (waited + waitMillis > maxWaitMillis) {
+                        throw new IllegalStateException("序列号用完,需要等待" + waitMillis + "毫秒,已等待" + waited + "毫秒");
+                    }
+                    sleep(waitMillis);
+                    waited += waitMillis;
+                    continue;
+                }
+                next = last + 1;
+            }
+            if (state.compareAndSet(last, next)) {
+                return compose(next >>> SEQUENCE_BITS, workerId, next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    static long compose(long timestamp, long workerId, long sequence) {
+        return SNOWFLAKE_FLAG
+                | timestamp << (WORKER_BITS + SEQUENCE_BITS)
+                | workerId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    /**
+     * 当前时间,单元测试中替换为可控的时钟
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待生成id时被中断", e);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * redis stream消费者组的通用消费逻辑,订单保存和笔记推送共用
+ * 1.启动时创建消费者组,每个stream启动若干消费线程 XREADGROUP ... BLOCK
+ * 2.stream被删除后(NOGROUP)重新创建消费者组
+ * 3.定时认领长时间未确认的消息重新处理,超过投递次数的转入死信队列(可选)并确认
+ * 4.认领的同时裁剪已经确认的消息,XACK不会删除消息,不裁剪时stream会一直增长
+ * 消息由handler处理并自行确认,处理失败的消息不确认,留在pending-list中等待认领
+ */
+@Slf4j
+@Accessors(chain = true)
+public class StreamConsumer {
+
+    /**
+     * 处理一批消息,成功的消息调用acknowledge确认
+     */
+    public interface Handler {
+        void handle(String streamKey, List<MapRecord<String, Object, Object>> records);
+    }
+
+    /**
+     * 消息超过投递次数,已经转入死信队列并确认
+     */
+    public interface DeadLetterListener {
+        void onDeadLetter(String streamKey, MapRecord<String, Object, Object> record, long deliveries);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String group;
+    private final String consumerName;
+    private final Handler handler;
+
+    //每次最多读取的消息数
+    @Setter
+    private int batchSize = 100;
+
+    //没有消息时最多阻塞等待的时间
+    @Setter
+    private long blockMillis = 2000;
+
+    //消息超过这个时间没有确认,认为消费者已经宕机,由其他消费者认领
+    @Setter
+    private long pendingIdleMillis = 60000;
+
+    //投递次数达到这个值仍然失败的消息不再重试
+    @Setter
+    private long maxDeliveries = 5;
+
+    //死信队列的stream,为null时超过投递次数的消息直接确认丢弃
+    @Setter
+    private String deadLetterKey;
+
+    @Setter
+    private DeadLetterListener deadLetterListener;
+
+    //已确认的消息在stream中保留的时间,小于0时不裁剪
+    @Setter
+    private long retainMillis = -1;
+
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    private List<String> streamKeys = Collections.emptyList();
+    private ExecutorService executor;
+    private volatile boolean running = true;
+
+    /**
+     * @param group 消费者组名
+     * @param consumerName 消费者名称,同一个消费者组中每个节点必须唯一,线程名在此基础上加序号
+     * @param handler 消息处理
+     */
+    public StreamConsumer(StringRedisTemplate stringRedisTemplate, String group, String consumerName, Handler handler) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.group = group;
+        this.consumerName = consumerName;
+        this.handler = handler;
+    }
+
+    /**
+     * 默认的消费者名称,主机名加端口,重启后仍然能认领自己未确认的消息
+     */
+    public static String defaultConsumerName(int serverPort) {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + serverPort;
+        } catch (UnknownHostException e) {
+            return "consumer:" + serverPort;
+        }
+    }
+
+    /**
+     * 创建消费者组并启动消费线程
+     * @param streamKeys 要消费的stream
+     * @param consumers 每个stream的消费线程数,每个线程是消费者组中的一个消费者
+     * @param threadPrefix 线程名前缀
+     */
+    public void start(List<String> streamKeys, int consumers, String threadPrefix) {
+        this.streamKeys = new ArrayList<>(streamKeys);
+        executor = Executors.newFixedThreadPool(streamKeys.size() * consumers, ThreadUtil.newNamedThreadFactory(threadPrefix, false));
+        for (String streamKey : streamKeys) {
+            createGroupIfAbsent(streamKey);
+            for (int i = 0; i < consumers; i++) {
+                String name = consumerName + "-" + i;
+                executor.submit(() -> consume(streamKey, name));
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 确认消息 XACK streamKey group id1 id2 ...
+     */
+    public void acknowledge(String streamKey, RecordId... ids) {
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, group, ids);
+    }
+
+    //创建消费者组,stream不存在时一并创建
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(streamKey.getBytes(StandardCharsets.UTF_8), group, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            if (!ExceptionUtil.getRootCauseMessage(e).contains("BUSYGROUP")) {
+                log.error("创建{}的消费者组失败:", streamKey, e);
+            }
+        }
+    }
+
+    private void consume(String streamKey, String name) {
+        while (running) {
+            try {
+                //XREADGROUP GROUP g1 name COUNT batchSize BLOCK blockMillis STREAMS streamKey >
+                //有消息时立即返回最多batchSize条,没有消息时最多等待blockMillis
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(group, name),
+                        StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMillis)),
+                        StreamOffset.create(streamKey, ReadOffset.lastConsumed())
+                );
+                if (list == null || list.isEmpty()) {
+                    continue;
+                }
+                handler.handle(streamKey, list);
+            } catch (Exception e) {
+                log.error("消费{}异常:", streamKey, e);
+                if (ExceptionUtil.getRootCauseMessage(e).contains("NOGROUP")) {
+                    //stream被删除过,重新创建消费者组
+                    createGroupIfAbsent(streamKey);
+                }
+                ThreadUtil.sleep(blockMillis);
+            }
+        }
+    }
+
+    /**
+     * 认领所有stream中长时间未确认的消息,包括其他节点宕机前没处理完的和本节点处理失败的
+     * 然后裁剪已经确认的消息
+     */
+    public void reclaimPending() {
+        for (String streamKey : streamKeys) {
+            try {
+                reclaimPending(streamKey);
+            } catch (Exception e) {
+                log.error("认领{}中未确认的消息异常:", streamKey, e);
+            }
+            if (retainMillis >= 0) {
+                trim(streamKey);
+            }
+        }
+    }
+
+    /**
+     * 裁剪所有消费者组都已经确认、并且超过保留时间的消息,未投递和未确认的消息不会被裁剪
+     */
+    private void trim(String streamKey) {
+        try {
+            String minId = (System.currentTimeMillis() - retainMillis) + "-0";
+            Long trimmed = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(streamKey), minId);
+            if (trimmed != null && trimmed > 0) {
+                log.debug("裁剪{}中已确认的消息{}条", streamKey, trimmed);
+            }
+        } catch (Exception e) {
+            log.error("裁剪{}异常:", streamKey, e);
+        }
+    }
+
+    /**
+     * XCLAIM带有最小空闲时间,多个节点同时认领同一条消息时只有一个会成功
+     */
+    private void reclaimPending(String streamKey) {
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(streamKey, group, Range.unbounded(), 100L);
+        Map<RecordId, Long> deliveries = new HashMap<>();
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() >= pendingIdleMillis) {
+                deliveries.put(message.getId(), message.getTotalDeliveryCount());
+            }
+        }
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        RecordId[] ids = deliveries.keySet().toArray(new RecordId[0]);
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection -> connection.streamCommands()
+                .xClaim(streamKey.getBytes(StandardCharsets.UTF_8), group, consumerName, Duration.ofMillis(pendingIdleMillis), ids));
+        if (claimed == null || claimed.isEmpty()) {
+            return;
+        }
+        List<MapRecord<String, Object, Object>> retry = new ArrayList<>(claimed.size());
+        for (ByteRecord byteRecord : claimed) {
+            MapRecord<String, Object, Object> record = byteRecord.deserialize(RedisSerializer.string(), RedisSerializer.string(), RedisSerializer.string());
+            long count = deliveries.getOrDefault(record.getId(), 0L);
+            if (count >= maxDeliveries) {
+                deadLetter(streamKey, record, count);
+            } else {
+                retry.add(record);
+            }
+        }
+        if (!retry.isEmpty()) {
+            handler.handle(streamKey, retry);
+        }
+    }
+
+    //多次投递仍然失败的消息转入死信队列并确认,避免一直占用pending-list
+    private void deadLetter(String streamKey, MapRecord<String, Object, Object> record, long deliveries) {
+        deadLetter(streamKey, record, Collections.singletonMap("deliveries", String.valueOf(deliveries)));
+        if (deadLetterListener != null) {
+            deadLetterListener.onDeadLetter(streamKey, record, deliveries);
+        }
+    }
+
+    /**
+     * 把消息转入死信队列并确认,用于重试也无法成功的消息
+     * @param info 附加到死信消息中的说明,例如失败原因
+     */
+    public void deadLetter(String streamKey, MapRecord<String, Object, Object> record, Map<String, String> info) {
+        if (deadLetterKey != null) {
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.put("source", streamKey);
+            value.put("sourceId", record.getId().getValue());
+            value.putAll(info);
+            stringRedisTemplate.opsForStream().add(deadLetterKey, value);
+        }
+        acknowledge(streamKey, record.getId());
+    }
+}
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+
+/**
+ * 登录token的签发、解析和吊销
+ * hmdp.login.token.mode=redis 用户信息保存在redis的hash中(RedisTokenManager),signed 用户信息签名后放在token中(SignedTokenManager)
+ */
+public interface TokenManager {
+
+    /**
+     * 登录成功后签发token
+     * @param user 登录用户
+     * @return token
+     */
+    String issue(UserDTO user);
+
+    /**
+     * 解析请求头中的token
+     * @param token token
+     * @return 登录用户,token无效、过期或已吊销返回null
+     */
+    UserDTO resolve(String token);
+
+    /**
+     * 吊销token,并通知所有节点
+     * @param token token
+     */
+    void revoke(String token);
+
+    /**
+     * 收到其他节点的吊销消息,只更新本节点的本地状态
+     * @param token token
+     */
+    void onRemoteRevoke(String token);
+}
@@ -1,20 +1,16 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 public class refreshTokenInterceptor implements HandlerInterceptor {
-    private StringRedisTemplate stringRedisTemplate;
-    public refreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate=stringRedisTemplate;
+    private TokenManager tokenManager;
+    public refreshTokenInterceptor(TokenManager tokenManager) {
+        this.tokenManager=tokenManager;
     }
 
     @Override
@@ -23,14 +19,12 @@ public class refreshTokenInterceptor implements HandlerInterceptor {
         if(StrUtil.isBlank(token)){
             return true;
         }
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(RedisConstants.LOGIN_USER_KEY + token);
-        if(userMap.isEmpty()){
+        //redis模式先查本地缓存,token有效期只在剩余不足时才刷新;签名模式只在本地验证签名
+        UserDTO userDTO = tokenManager.resolve(token);
+        if(userDTO==null){
             return true;
         }
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
         UserHolder.saveUser(userDTO);
-        //刷新token有效期
-        stringRedisTemplate.expire(RedisConstants.LOGIN_USER_KEY+token,RedisConstants.LOGIN_USER_TTL, TimeUnit.DAYS);
         return true;
     }
 
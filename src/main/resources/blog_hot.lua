@@ -0,0 +1,12 @@
+-- 给热门排行中的笔记加分
+-- KEYS[1] 热门排行 blog:hot
+-- KEYS[2] 热门排行的基准时间 blog:hot:epoch
+-- ARGV 笔记id,权重,发生时间戳,半衰期(毫秒)
+
+local epoch=redis.call('get',KEYS[2])
+if(epoch==false) then
+    -- 还没有从数据库导入完成,导入时会包含这篇笔记
+    return 0
+end
+redis.call('zincrby',KEYS[1],tonumber(ARGV[2])*2^((tonumber(ARGV[3])-tonumber(epoch))/tonumber(ARGV[4])),ARGV[1])
+return 0
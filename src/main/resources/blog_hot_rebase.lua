@@ -0,0 +1,40 @@
+-- 把热门排行的基准时间移到当前时间,所有分数按同一比例缩小,排名不变
+-- 先裁剪再缩放,一次处理的成员数不超过maxSize
+-- 分数低于2^floor时压缩到(2^(floor-1),2^floor]之间,避免下溢为0后排名相同,压缩方式与BlogHotRank.score一致
+-- KEYS[1] 热门排行 blog:hot
+-- KEYS[2] 热门排行的基准时间 blog:hot:epoch
+-- ARGV 当前时间戳,半衰期(毫秒),maxSize,floor
+-- 返回 缩放的成员数
+
+local epoch=redis.call('get',KEYS[2])
+if(epoch==false) then
+    return 0
+end
+redis.call('zremrangebyrank',KEYS[1],0,-(tonumber(ARGV[3])+1))
+local floor=tonumber(ARGV[4])
+local shift=(tonumber(epoch)-tonumber(ARGV[1]))/tonumber(ARGV[2])
+local floorScore=2^floor
+local members=redis.call('zrange',KEYS[1],0,-1,'WITHSCORES')
+for i=1,#members,2 do
+    local score=tonumber(members[i+1])
+    if(score>0) then
+        -- 还原出分数的以2为底的对数,平移后再换算回分数
+        local exp
+        if(score>=floorScore) then
+            exp=math.log(score)/math.log(2)
+        else
+            local y=floor-math.log(score)/math.log(2)
+            exp=floor-y/(1-y)
+        end
+        exp=exp+shift
+        if(exp>=floor) then
+            score=2^exp
+        else
+            local d=floor-exp
+            score=2^(floor-d/(1+d))
+        end
+        redis.call('zadd',KEYS[1],score,members[i])
+    end
+end
+redis.call('set',KEYS[2],ARGV[1])
+return #members/2
@@ -0,0 +1,35 @@
+-- 点赞或取消点赞,同时累计笔记待写回数据库的点赞数增量,并更新热门排行
+-- KEYS[1] 点赞集合 blog:liked:{blogId}
+-- KEYS[2] 待写回的点赞数增量 blog:like:delta(hash,field为笔记id)
+-- KEYS[3] 热门排行 blog:hot
+-- KEYS[4] 热门排行的基准时间 blog:hot:epoch
+-- ARGV 用户id,当前时间戳,笔记id,半衰期(毫秒)
+-- 返回 1点赞 0取消点赞
+
+-- 热门排行还没有从数据库导入完成时(没有基准时间)不更新排行
+local epoch=redis.call('get',KEYS[4])
+
+-- 时间为time的一次点赞在热门排行中的分数
+local function weight(time)
+    return 2^((tonumber(time)-tonumber(epoch))/tonumber(ARGV[4]))
+end
+
+local liked
+local likedAt=redis.call('zscore',KEYS[1],ARGV[1])
+if(likedAt) then
+    redis.call('zrem',KEYS[1],ARGV[1])
+    redis.call('hincrby',KEYS[2],ARGV[3],-1)
+    -- 按原来的点赞时间扣除,已经被裁剪出排行的笔记不处理
+    if(epoch and redis.call('zscore',KEYS[3],ARGV[3])) then
+        redis.call('zincrby',KEYS[3],-weight(likedAt),ARGV[3])
+    end
+    liked=0
+else
+    redis.call('zadd',KEYS[1],ARGV[2],ARGV[1])
+    redis.call('hincrby',KEYS[2],ARGV[3],1)
+    if(epoch) then
+        redis.call('zincrby',KEYS[3],weight(ARGV[2]),ARGV[3])
+    end
+    liked=1
+end
+return liked
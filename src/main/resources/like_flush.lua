@@ -0,0 +1,17 @@
+-- 取出待写回的点赞数增量快照
+-- 上一次写回没有完成时返回遗留的快照,否则把增量改名为快照,之后的点赞累计到新的增量中
+-- KEYS[1] 点赞数增量 blog:like:delta
+-- KEYS[2] 增量快照 blog:like:delta:flushing
+-- ARGV[1] 新快照的标识
+-- 返回 快照标识,没有需要写回的增量时返回nil
+
+local id=redis.call('hget',KEYS[2],'#snapshot')
+if(id) then
+    return id
+end
+if(redis.call('exists',KEYS[1])==0) then
+    return false
+end
+redis.call('rename',KEYS[1],KEYS[2])
+redis.call('hset',KEYS[2],'#snapshot',ARGV[1])
+return ARGV[1]
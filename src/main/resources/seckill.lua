@@ -5,6 +5,7 @@
 ---
 
 -- 此lua脚本用于判断秒杀库存,一人一单,决定用户是否抢购成功
+-- 只操作用户所属的分片,所有key带有相同的hash tag,集群模式下位于同一个slot
 
 -- 1.参数列表
 -- 1.1.优惠券id
@@ -15,15 +16,17 @@ local userId=ARGV[2]
 local orderId=ARGV[3]
 
 -- 2.数据key
--- 2.1.库存key
-local stockKey='seckill:stock:'..voucherId -- 优惠券库存
--- 2.2.订单key
-local orderKey='seckill:order:'..voucherId -- 该优惠券已经被下的订单
+-- 2.1.库存key seckill:stock:{shard}:voucherId
+local stockKey=KEYS[1]
+-- 2.2.订单key seckill:order:{shard}:voucherId,该分片用户已经下过的订单
+local orderKey=KEYS[2]
+-- 2.3.订单stream stream.orders:{shard}
+local streamKey=KEYS[3]
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get',stockKey))<=0) then
-    -- 库存不足
+-- 3.1.库存不存在,秒杀已经结束
+local stock=redis.call('get',stockKey)
+if(stock==false) then
     return 1
 end
 
@@ -33,8 +36,16 @@ if(redis.call('sismember',orderKey,userId)==1) then
     return 2
 end
 
--- 3.3.扣库存 incrby stockKey -1
-redis.call('incrby',stockKey,-1)
--- 3.4.下单保存用户 sadd orderKey userId
+-- 3.3.先占住一人一单的名额 sadd orderKey userId
 redis.call('sadd',orderKey,userId)
+
+-- 3.4.本分片库存不足,保留名额,由调用方去其他分片扣库存
+if(tonumber(stock)<=0) then
+    return 3
+end
+
+-- 3.5.扣库存 incrby stockKey -1
+redis.call('incrby',stockKey,-1)
+-- 3.6.发送订单到消息队列 xadd stream.orders:{shard} * k1 v1 k2 v2 ...
+redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId)
 return 0
@@ -0,0 +1,14 @@
+-- 用户所属分片库存不足时,到其他分片扣库存,一人一单的名额已经在所属分片占住
+-- KEYS[1] 库存key seckill:stock:{shard}:voucherId
+-- KEYS[2] 订单stream stream.orders:{shard}
+-- ARGV 优惠券id,用户id,订单id
+
+local stock=redis.call('get',KEYS[1])
+if(stock==false or tonumber(stock)<=0) then
+    -- 该分片库存不足
+    return 1
+end
+
+redis.call('incrby',KEYS[1],-1)
+redis.call('xadd',KEYS[2],'*','userId',ARGV[2],'voucherId',ARGV[1],'id',ARGV[3])
+return 0
@@ -0,0 +1,42 @@
+-- 裁剪所有消费者组都已经确认的消息 XTRIM MINID ~ id,需要redis6.2以上
+-- 裁剪的边界取以下id中最小的:每个消费者组最后投递的消息之后的id、每个消费者组pending-list中最早的id、保留时间的起点
+-- KEYS[1] stream
+-- ARGV[1] 保留时间的起点,当前时间减去保留时间,格式为 毫秒-0
+-- 返回裁剪的消息数
+if (redis.call('exists', KEYS[1]) == 0) then
+    return 0
+end
+local function less(a, b)
+    local am, as = string.match(a, '(%d+)-(%d+)')
+    local bm, bs = string.match(b, '(%d+)-(%d+)')
+    am, as, bm, bs = tonumber(am), tonumber(as), tonumber(bm), tonumber(bs)
+    return am < bm or (am == bm and as < bs)
+end
+local groups = redis.call('XINFO', 'GROUPS', KEYS[1])
+if (#groups == 0) then
+    -- 没有消费者组时无法判断哪些消息已经处理
+    return 0
+end
+local minId = ARGV[1]
+for _, group in ipairs(groups) do
+    local name, last
+    for i = 1, #group, 2 do
+        if (group[i] == 'name') then
+            name = group[i + 1]
+        elseif (group[i] == 'last-delivered-id') then
+            last = group[i + 1]
+        end
+    end
+    -- 还没有投递的消息从last-delivered-id之后开始
+    local ms, seq = string.match(last, '(%d+)-(%d+)')
+    local undelivered = ms .. '-' .. string.format('%d', tonumber(seq) + 1)
+    if (less(undelivered, minId)) then
+        minId = undelivered
+    end
+    -- 已投递未确认的消息
+    local pending = redis.call('XPENDING', KEYS[1], name)
+    if (pending[1] > 0 and less(pending[2], minId)) then
+        minId = pending[2]
+    end
+end
+return redis.call('XTRIM', KEYS[1], 'MINID', '~', minId)
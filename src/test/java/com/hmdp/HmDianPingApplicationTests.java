@@ -2,10 +2,13 @@ package com.hmdp;
 
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
 import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -20,27 +23,29 @@ class HmDianPingApplicationTests {
     RedisIdWorker redisIdWorker;
 
     @Test
-    void testSaveShop(){
-     service.saveShop2Redis(1L,10L);
+    void testWarmUpHotShops(){
+     service.warmUpHotShops(10);
     }
 
+    /**
+     * 并发生成的id不重复,性能测试见jmh模块的IdGeneratorBenchmark
+     */
     @Test
     void testIdWorker() throws InterruptedException {
         ExecutorService es = Executors.newFixedThreadPool(500);
         CountDownLatch latch = new CountDownLatch(300);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
         Runnable task=()->{
             for(int i=0;i<100;i++){
-                Long id = redisIdWorker.nextId("order");
-                System.out.println(id);
+                ids.add(redisIdWorker.nextId("order"));
             }
             latch.countDown();
         };
-        long begin=System.currentTimeMillis();
         for(int i=0;i<300;i++){
             es.submit(task);
         }
         latch.await();
-        long end=System.currentTimeMillis();
-        System.out.println("耗时:"+(end-begin));
+        es.shutdown();
+        Assertions.assertEquals(300*100, ids.size());
     }
 }
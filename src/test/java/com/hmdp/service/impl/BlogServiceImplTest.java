@@ -0,0 +1,149 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.utils.RedisConstants;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+
+/**
+ * 点赞数增量按快照写回数据库,同一个快照只写一次
+ */
+class BlogServiceImplTest {
+
+    private static final List<String> FLUSH_KEYS =
+            Arrays.asList(RedisConstants.BLOG_LIKE_DELTA_KEY, RedisConstants.BLOG_LIKE_FLUSHING_KEY);
+
+    private final BlogServiceImpl service = new BlogServiceImpl();
+    private final BlogMapper blogMapper = Mockito.mock(BlogMapper.class);
+    private final StringRedisTemplate stringRedisTemplate = Mockito.mock(StringRedisTemplate.class);
+
+    //模拟tb_blog.liked和tb_blog_like_flush
+    private final Map<Long, Integer> liked = new HashMap<>();
+    private final AtomicReference<String> appliedSnapshot = new AtomicReference<>();
+    private final AtomicInteger updates = new AtomicInteger();
+
+    //模拟redis中的增量快照blog:like:delta:flushing
+    private final Map<Object, Object> flushing = new HashMap<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        ReflectionTestUtils.setField(service, "baseMapper", blogMapper);
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+        //单元测试中没有事务代理,直接调用自身
+        ReflectionTestUtils.setField(service, "proxy", service);
+        ReflectionTestUtils.setField(service, "likeFlushBatchSize", 2);
+        ReflectionTestUtils.setField(service, "likeFlushLockSeconds", 60L);
+
+        Mockito.when(blogMapper.selectLikeFlushSnapshot()).thenAnswer(invocation -> appliedSnapshot.get());
+        Mockito.when(blogMapper.upsertLikeFlushSnapshot(anyString())).thenAnswer(invocation -> {
+            appliedSnapshot.set(invocation.getArgument(0));
+            return 1;
+        });
+        //与BlogMapper.xml一致:增加直接累加,减少时最多减到0
+        Mockito.when(blogMapper.addLikedBatch(ArgumentMatchers.anyMap())).thenAnswer(invocation -> {
+            Map<Long, Integer> deltas = invocation.getArgument(0);
+            deltas.forEach((id, delta) -> liked.merge(id, delta, (a, b) -> Math.max(0, a + b)));
+            updates.incrementAndGet();
+            return deltas.size();
+        });
+
+        ValueOperations<String, String> valueOps = Mockito.mock(ValueOperations.class);
+        Mockito.when(stringRedisTemplate.opsForValue()).thenReturn(valueOps);
+        Mockito.when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.SECONDS))).thenReturn(true);
+        HashOperations<String, Object, Object> hashOps = Mockito.mock(HashOperations.class);
+        Mockito.when(stringRedisTemplate.opsForHash()).thenReturn(hashOps);
+        Mockito.when(hashOps.entries(RedisConstants.BLOG_LIKE_FLUSHING_KEY)).thenAnswer(invocation -> new HashMap<>(flushing));
+        //like_flush.lua: 有遗留的快照时返回它的标识
+        Mockito.when(stringRedisTemplate.execute(ArgumentMatchers.<RedisScript<Object>>any(), eq(FLUSH_KEYS), ArgumentMatchers.<Object>any()))
+                .thenAnswer(invocation -> flushing.get("#snapshot"));
+    }
+
+    @Test
+    void testApplyInBatches() {
+        liked.put(1L, 10);
+        liked.put(2L, 1);
+        Map<Long, Integer> deltas = new HashMap<>();
+        deltas.put(1L, 3);
+        deltas.put(2L, -5);
+        deltas.put(3L, 1);
+        deltas.put(4L, 2);
+        deltas.put(5L, 7);
+        Assertions.assertEquals(5, service.applyLikeDeltas("s1", deltas));
+        //每批2篇笔记,共3条UPDATE
+        Assertions.assertEquals(3, updates.get());
+        Assertions.assertEquals(13, liked.get(1L));
+        //取消点赞不会把点赞数减成负数
+        Assertions.assertEquals(0, liked.get(2L));
+        Assertions.assertEquals(7, liked.get(5L));
+        Assertions.assertEquals("s1", appliedSnapshot.get());
+    }
+
+    /**
+     * 已经写回过的快照再次写回(写回后删除快照前宕机)时跳过
+     */
+    @Test
+    void testSameSnapshotAppliedOnce() {
+        Map<Long, Integer> deltas = new HashMap<>();
+        deltas.put(1L, 4);
+        Assertions.assertEquals(1, service.applyLikeDeltas("s1", deltas));
+        Assertions.assertEquals(0, service.applyLikeDeltas("s1", deltas));
+        Assertions.assertEquals(4, liked.get(1L));
+        Assertions.assertEquals(1, updates.get());
+        //新的快照正常写回
+        Assertions.assertEquals(1, service.applyLikeDeltas("s2", deltas));
+        Assertions.assertEquals(8, liked.get(1L));
+    }
+
+    /**
+     * 写回成功但删除快照失败,下一次flush取到同一个快照,不会重复累加
+     */
+    @Test
+    void testFlushRetryAfterCrashIsExactlyOnce() {
+        liked.put(1L, 100);
+        flushing.put("#snapshot", "s1");
+        flushing.put("1", "3");
+        flushing.put("2", "0");
+        Mockito.when(stringRedisTemplate.delete(RedisConstants.BLOG_LIKE_FLUSHING_KEY))
+                .thenThrow(new IllegalStateException("redis down"))
+                .thenAnswer(invocation -> {
+                    flushing.clear();
+                    return true;
+                });
+
+        service.flushLikes();
+        Assertions.assertEquals(103, liked.get(1L));
+        Assertions.assertEquals("s1", flushing.get("#snapshot"));
+
+        service.flushLikes();
+        Assertions.assertEquals(103, liked.get(1L));
+        Assertions.assertTrue(flushing.isEmpty());
+        //增量为0的笔记不写库
+        Assertions.assertFalse(liked.containsKey(2L));
+        Assertions.assertEquals(1, updates.get());
+
+        //没有增量时不访问数据库
+        service.flushLikes();
+        Assertions.assertEquals(1, updates.get());
+    }
+}
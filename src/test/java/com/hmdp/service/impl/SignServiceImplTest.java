@@ -0,0 +1,122 @@
+package com.hmdp.service.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.HashMap;
+import java.util.Map;
+
+class SignServiceImplTest {
+
+    //模拟redis中每月的bitmap sign:{userId}:{yyyyMM},第n天是第n-1位,第0位是第0个字节的最高位
+    private final Map<YearMonth, byte[]> bitmaps = new HashMap<>();
+
+    private void sign(LocalDate date) {
+        byte[] bitmap = bitmaps.computeIfAbsent(YearMonth.from(date), m -> new byte[4]);
+        int offset = date.getDayOfMonth() - 1;
+        bitmap[offset >>> 3] |= 0x80 >>> (offset & 7);
+    }
+
+    private void signRange(LocalDate from, LocalDate to) {
+        for (LocalDate d = from; !d.isAfter(to); d = d.plusDays(1)) {
+            sign(d);
+        }
+    }
+
+    //BITFIELD sign:{userId}:{yyyyMM} GET u{days} 0,最低位是days号
+    private long monthBits(YearMonth month, int days) {
+        byte[] bitmap = bitmaps.get(month);
+        long bits = 0;
+        for (int i = 0; i < days; i++) {
+            boolean set = bitmap != null && (bitmap[i >>> 3] & (0x80 >>> (i & 7))) != 0;
+            bits = bits << 1 | (set ? 1 : 0);
+        }
+        return bits;
+    }
+
+    private int streak(LocalDate today) {
+        return SignServiceImpl.streak(today, 24, this::monthBits);
+    }
+
+    @Test
+    void testNoSign() {
+        Assertions.assertEquals(0, streak(LocalDate.of(2024, 3, 15)));
+    }
+
+    @Test
+    void testStreakEndingToday() {
+        sign(LocalDate.of(2024, 3, 10));
+        signRange(LocalDate.of(2024, 3, 12), LocalDate.of(2024, 3, 15));
+        Assertions.assertEquals(4, streak(LocalDate.of(2024, 3, 15)));
+    }
+
+    /**
+     * 今天还没有签到时,连续记录保持到昨天;昨天也没签到时为0
+     */
+    @Test
+    void testTodayNotSignedYet() {
+        signRange(LocalDate.of(2024, 3, 12), LocalDate.of(2024, 3, 14));
+        Assertions.assertEquals(3, streak(LocalDate.of(2024, 3, 15)));
+        Assertions.assertEquals(0, streak(LocalDate.of(2024, 3, 16)));
+    }
+
+    /**
+     * 跨月、跨闰年二月连续签到
+     */
+    @Test
+    void testStreakAcrossMonths() {
+        signRange(LocalDate.of(2024, 1, 20), LocalDate.of(2024, 3, 2));
+        //1月20日到3月2日: 12 + 29 + 2
+        Assertions.assertEquals(43, streak(LocalDate.of(2024, 3, 2)));
+        //1号还没签到,从上个月末开始统计
+        Assertions.assertEquals(43, streak(LocalDate.of(2024, 3, 3)));
+    }
+
+    /**
+     * 整月签满的月份用到所有位,31天的月份最高位也要计入
+     */
+    @Test
+    void testFullMonths() {
+        signRange(LocalDate.of(2023, 12, 1), LocalDate.of(2024, 1, 31));
+        Assertions.assertEquals(62, streak(LocalDate.of(2024, 1, 31)));
+    }
+
+    @Test
+    void testMaxMonths() {
+        signRange(LocalDate.of(2023, 1, 1), LocalDate.of(2024, 3, 5));
+        Assertions.assertEquals(5 + 29 + 31, SignServiceImpl.streak(LocalDate.of(2024, 3, 5), 2, this::monthBits));
+    }
+
+    /**
+     * 归档的signBits(第n天是第n-1位)还原后与redis的BITFIELD结果一致
+     */
+    @Test
+    void testArchiveRoundTrip() {
+        YearMonth month = YearMonth.of(2024, 1);
+        sign(month.atDay(1));
+        sign(month.atDay(8));
+        sign(month.atDay(9));
+        sign(month.atDay(31));
+        int days = month.lengthOfMonth();
+        int signBits = SignServiceImpl.toSignBits(bitmaps.get(month), days);
+        Assertions.assertEquals(1 | 1 << 7 | 1 << 8 | 1 << 30, signBits);
+        Assertions.assertEquals(monthBits(month, days), SignServiceImpl.archivedToMonthBits(signBits, days));
+
+        //2月只有29天,归档中多余的位不会被读到
+        YearMonth feb = YearMonth.of(2024, 2);
+        signRange(feb.atDay(1), feb.atEndOfMonth());
+        int febBits = SignServiceImpl.toSignBits(bitmaps.get(feb), 29);
+        Assertions.assertEquals((1 << 29) - 1, febBits);
+        Assertions.assertEquals((1L << 29) - 1, SignServiceImpl.archivedToMonthBits(febBits, 29));
+    }
+
+    /**
+     * bitmap只写到了前几个字节(月初签到)时,后面的天数视为未签到
+     */
+    @Test
+    void testShortBitmap() {
+        Assertions.assertEquals(0b101, SignServiceImpl.toSignBits(new byte[]{(byte) 0xA0}, 31));
+    }
+}
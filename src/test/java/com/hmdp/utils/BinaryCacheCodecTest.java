@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+class BinaryCacheCodecTest {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec().register(BinaryCacheSchemas.SHOP);
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://example.com/1.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123456789))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    /**
+     * 头部: 魔数 + 负载类型 + 8字节逻辑过期时间
+     */
+    @Test
+    void testHeader() {
+        long expire = 1730194431123L;
+        byte[] bytes = codec.encodeWithExpire(shop(), expire);
+        Assertions.assertEquals(BinaryCacheCodec.MAGIC, bytes[0]);
+        Assertions.assertEquals(1, bytes[1]);
+        Assertions.assertTrue(codec.supports(bytes));
+        Assertions.assertEquals(expire, codec.readExpire(bytes));
+        Assertions.assertEquals(0, codec.readExpire(codec.encode(shop())));
+    }
+
+    @Test
+    void testSchemaRoundTrip() {
+        Shop shop = shop();
+        Assertions.assertEquals(shop, codec.decode(codec.encodeWithExpire(shop, 1L), Shop.class));
+        Assertions.assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+    }
+
+    /**
+     * 包装类型为null时只写一个标志字节,读出来仍然是null
+     */
+    @Test
+    void testNullFields() {
+        Shop shop = new Shop().setId(2L).setName("只有名字");
+        Assertions.assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+    }
+
+    /**
+     * 没有注册结构的类型负载为json,仍然带二进制头部
+     */
+    @Test
+    void testJsonPayload() {
+        Voucher voucher = new Voucher().setId(3L).setTitle("50元代金券").setPayValue(4750L);
+        byte[] bytes = codec.encodeWithExpire(voucher, 42L);
+        Assertions.assertEquals(2, bytes[1]);
+        Assertions.assertEquals(42L, codec.readExpire(bytes));
+        Voucher decoded = codec.decode(bytes, Voucher.class);
+        Assertions.assertEquals(3L, decoded.getId());
+        Assertions.assertEquals("50元代金券", decoded.getTitle());
+        Assertions.assertEquals(4750L, decoded.getPayValue());
+    }
+
+    /**
+     * 旧的json数据和二进制数据可以共存,读取时按数据本身选择编解码器
+     */
+    @Test
+    void testReaderOfLegacyJson() {
+        CacheCodecs codecs = new CacheCodecs(CacheCodecs.BINARY);
+        byte[] json = new JsonCacheCodec().encodeWithExpire(shop(), 1730194431000L);
+        Assertions.assertFalse(codec.supports(json));
+        Assertions.assertFalse(codec.supports("".getBytes(StandardCharsets.UTF_8)));
+        Assertions.assertTrue(codecs.readerOf(json) instanceof JsonCacheCodec);
+        Assertions.assertEquals(1730194431000L, codecs.readerOf(json).readExpire(json));
+        Assertions.assertEquals("103茶餐厅", codecs.readerOf(json).decode(json, Shop.class).getName());
+
+        byte[] binary = codecs.writer().encode(shop());
+        Assertions.assertSame(BinaryCacheCodec.class, codecs.readerOf(binary).getClass());
+        Assertions.assertEquals(shop(), codecs.readerOf(binary).decode(binary, Shop.class));
+    }
+}
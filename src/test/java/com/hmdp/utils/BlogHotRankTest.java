@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 热门排行分数的衰减、下溢压缩和基准时间移动
+ */
+class BlogHotRankTest {
+
+    @Test
+    void testScoreIsMonotonicAcrossFloor() {
+        double last = 0;
+        for (double exp = -1100; exp <= 10; exp += 0.25) {
+            double score = BlogHotRank.score(exp);
+            Assertions.assertTrue(score > last, "exp " + exp);
+            last = score;
+        }
+        Assertions.assertEquals(Math.pow(2, -1000), BlogHotRank.score(-1000));
+        Assertions.assertEquals(8, BlogHotRank.score(3));
+    }
+
+    /**
+     * 发布很久的笔记分数不会下溢为0,压缩在(2^-1001,2^-1000]之间并保持顺序
+     */
+    @Test
+    void testScoreDoesNotUnderflow() {
+        double older = BlogHotRank.score(-1e9);
+        double old = BlogHotRank.score(-1e6);
+        Assertions.assertTrue(older > Math.pow(2, -1001));
+        Assertions.assertTrue(old > older);
+        Assertions.assertTrue(old <= Math.pow(2, -1000));
+    }
+
+    @Test
+    void testExpIsInverseOfScore() {
+        for (double exp : new double[]{10, 0, -500, -1000, -1000.5, -1010, -2000, -1e5}) {
+            Assertions.assertEquals(exp, BlogHotRank.exp(BlogHotRank.score(exp)), Math.abs(exp) * 1e-9 + 1e-9, "exp " + exp);
+        }
+    }
+
+    /**
+     * 基准时间移动后,每个分数都等于直接以新的基准时间计算的分数
+     */
+    @Test
+    void testRebaseMatchesScoreAtNewEpoch() {
+        Assertions.assertEquals(BlogHotRank.score(-3), BlogHotRank.rebase(BlogHotRank.score(2), 5), 1e-12);
+        Assertions.assertEquals(0, BlogHotRank.rebase(0, 5));
+        for (double exp : new double[]{20, -990, -1005}) {
+            double expected = BlogHotRank.score(exp - 12);
+            Assertions.assertEquals(expected, BlogHotRank.rebase(BlogHotRank.score(exp), 12), expected * 1e-9, "exp " + exp);
+        }
+    }
+
+    /**
+     * 所有分数按同一比例缩小,排名不变,包括已经压缩到下限以下的分数
+     */
+    @Test
+    void testRebaseKeepsRanking() {
+        Random random = new Random(7);
+        List<Double> exps = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            exps.add(-1100 + random.nextDouble() * 1120);
+        }
+        Collections.sort(exps);
+        double last = 0;
+        for (double exp : exps) {
+            double rebased = BlogHotRank.rebase(BlogHotRank.score(exp), 30);
+            Assertions.assertTrue(rebased > last, "exp " + exp);
+            last = rebased;
+        }
+    }
+
+    /**
+     * 导入时分数为(post-weight+liked)*2^((发布时间-epoch)/半衰期),半衰期前点赞翻倍的旧笔记与新笔记分数相同
+     */
+    @Test
+    void testLoadDecaysByCreateTime() {
+        BlogHotRank rank = new BlogHotRank();
+        BlogMapper blogMapper = Mockito.mock(BlogMapper.class);
+        StringRedisTemplate stringRedisTemplate = Mockito.mock(StringRedisTemplate.class);
+        ReflectionTestUtils.setField(rank, "blogMapper", blogMapper);
+        ReflectionTestUtils.setField(rank, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(rank, "halfLifeHours", 24L);
+        ReflectionTestUtils.setField(rank, "postWeight", 1.0);
+        ReflectionTestUtils.setField(rank, "maxSize", 100L);
+        ReflectionTestUtils.setField(rank, "loadBatchSize", 10);
+
+        LocalDateTime now = LocalDateTime.now();
+        List<Blog> blogs = Arrays.asList(
+                blog(1L, 9, now),
+                blog(2L, 19, now.minusDays(1)),
+                blog(3L, 0, now.minusYears(10)),
+                blog(4L, 1000, now.minusYears(10)));
+        Mockito.when(blogMapper.selectList(ArgumentMatchers.any()))
+                .thenReturn(blogs)
+                .thenReturn(Collections.emptyList());
+        Mockito.when(stringRedisTemplate.opsForValue()).thenReturn(Mockito.mock(ValueOperations.class));
+
+        Map<String, Double> scores = new HashMap<>();
+        RedisConnection connection = Mockito.mock(RedisConnection.class);
+        RedisZSetCommands zSetCommands = Mockito.mock(RedisZSetCommands.class);
+        Mockito.when(connection.zSetCommands()).thenReturn(zSetCommands);
+        Mockito.when(zSetCommands.zAdd(ArgumentMatchers.any(byte[].class), ArgumentMatchers.anyDouble(), ArgumentMatchers.any(byte[].class)))
+                .thenAnswer(invocation -> {
+                    scores.put(new String(invocation.<byte[]>getArgument(2), StandardCharsets.UTF_8), invocation.getArgument(1));
+                    return true;
+                });
+        Mockito.when(stringRedisTemplate.executePipelined(ArgumentMatchers.any(RedisCallback.class)))
+                .thenAnswer(invocation -> {
+                    invocation.<RedisCallback<?>>getArgument(0).doInRedis(connection);
+                    return Collections.emptyList();
+                });
+
+        Assertions.assertEquals(4, rank.load());
+        //当前时间发布的笔记分数约等于点赞数,加载期间时间推移会有微小误差
+        Assertions.assertEquals(10, scores.get("1"), 1e-3);
+        Assertions.assertEquals(scores.get("1"), scores.get("2"), 1e-3);
+        Assertions.assertTrue(scores.get("3") > 0);
+        Assertions.assertTrue(scores.get("4") > scores.get("3"));
+        Assertions.assertTrue(scores.get("1") > scores.get("4"));
+    }
+
+    private static Blog blog(Long id, int liked, LocalDateTime createTime) {
+        Blog blog = new Blog();
+        blog.setId(id);
+        blog.setLiked(liked);
+        blog.setCreateTime(createTime);
+        return blog;
+    }
+}
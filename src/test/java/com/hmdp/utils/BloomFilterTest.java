@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class BloomFilterTest {
+
+    /**
+     * 标准公式 m = -n*ln(p)/(ln2)^2, k = m/n*ln2
+     */
+    @Test
+    void testSizing() {
+        Assertions.assertEquals(9585059L, BloomFilter.optimalNumBits(1_000_000, 0.01));
+        Assertions.assertEquals(7, BloomFilter.optimalNumHashes(1_000_000, 9585059L));
+        BloomFilter filter = BloomFilter.create(1_000_000, 0.01);
+        Assertions.assertEquals("9585059:7", filter.getSizing());
+        //哈希函数至少一个
+        Assertions.assertEquals(1, BloomFilter.optimalNumHashes(1_000_000, 10));
+    }
+
+    @Test
+    void testNoFalseNegativesAndFppNearTarget() {
+        int n = 100_000;
+        BloomFilter filter = BloomFilter.create(n, 0.01);
+        for (long id = 1; id <= n; id++) {
+            filter.put(id);
+        }
+        for (long id = 1; id <= n; id++) {
+            Assertions.assertTrue(filter.mightContain(id));
+        }
+        int falsePositives = 0;
+        for (long id = n + 1; id <= 2L * n; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        //连续的id经过混合后分布均匀,实际误判率接近期望值
+        Assertions.assertTrue(falsePositives < n * 0.015, "falsePositives=" + falsePositives);
+    }
+
+    @Test
+    void testOffsetsInRange() {
+        BloomFilter filter = new BloomFilter(1000, 5);
+        for (long id : new long[]{0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            long[] offsets = filter.offsets(id);
+            Assertions.assertEquals(5, offsets.length);
+            for (long offset : offsets) {
+                Assertions.assertTrue(offset >= 0 && offset < 1000);
+            }
+        }
+    }
+
+    /**
+     * 本地位数组和redis的SETBIT顺序一致:第0位是第0个字节的最高位
+     */
+    @Test
+    void testLoadUsesRedisBitOrder() {
+        BloomFilter filter = new BloomFilter(16, 1);
+        long id = 42;
+        long offset = filter.offsets(id)[0];
+        byte[] redisBits = new byte[2];
+        redisBits[(int) (offset >>> 3)] = (byte) (0x80 >>> (offset & 7));
+        Assertions.assertFalse(filter.mightContain(id));
+        filter.load(redisBits);
+        Assertions.assertTrue(filter.mightContain(id));
+    }
+
+    /**
+     * 刷新时按位或合并,读取redis期间本地新增的id不会丢失;redis中的bitmap可能比本地短
+     */
+    @Test
+    void testLoadMergesInsteadOfReplacing() {
+        BloomFilter local = BloomFilter.create(10_000, 0.01);
+        for (long id = 1001; id <= 2000; id++) {
+            local.put(id);
+        }
+        local.load(redisBitmap(local, 1, 1000));
+        for (long id = 1; id <= 2000; id++) {
+            Assertions.assertTrue(local.mightContain(id));
+        }
+
+        //bitmap只写到了前几个字节,其余字节保持本地的值
+        BloomFilter other = BloomFilter.create(10_000, 0.01);
+        for (long id = 1001; id <= 2000; id++) {
+            other.put(id);
+        }
+        other.load(new byte[3]);
+        for (long id = 1001; id <= 2000; id++) {
+            Assertions.assertTrue(other.mightContain(id));
+        }
+    }
+
+    //模拟其他节点通过SETBIT写入redis的bitmap,GET bloom:{name}得到的字节
+    private static byte[] redisBitmap(BloomFilter sizing, long fromId, long toId) {
+        byte[] bytes = new byte[(int) ((sizing.getNumBits() + 7) >>> 3)];
+        for (long id = fromId; id <= toId; id++) {
+            for (long offset : sizing.offsets(id)) {
+                bytes[(int) (offset >>> 3)] |= 0x80 >>> (int) (offset & 7);
+            }
+        }
+        return bytes;
+    }
+}
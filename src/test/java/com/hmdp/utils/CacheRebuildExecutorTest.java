@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+class CacheRebuildExecutorTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    //一个线程,最多排队3个任务
+    private final CacheRebuildExecutor executor = new CacheRebuildExecutor(meterRegistry, 1, 3, false);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    //占住唯一的线程,后续提交的任务都在排队
+    private void blockWorker() throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        Assertions.assertTrue(executor.submit("blocker", 0, () -> {
+            running.countDown();
+            await(release);
+        }));
+        Assertions.assertTrue(running.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 热度高的先执行,热度相同先提交先执行;重复提交累加热度并调整位置
+     */
+    @Test
+    void testPriorityAndDedup() throws InterruptedException {
+        blockWorker();
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        Assertions.assertTrue(executor.submit("cache:shop:1", 1, record(order, "shop1", done)));
+        Assertions.assertTrue(executor.submit("cache:shop:2", 5, record(order, "shop2", done)));
+        Assertions.assertTrue(executor.submit("cache:shop:3", 1, record(order, "shop3", done)));
+        //shop1重复提交,热度1+10超过shop2,移到队首;重复的任务本身不会执行
+        Assertions.assertFalse(executor.submit("cache:shop:1", 10, record(order, "duplicate", done)));
+        Assertions.assertEquals(3, executor.queueSize());
+
+        release.countDown();
+        Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(Arrays.asList("shop1", "shop2", "shop3"), order);
+        Assertions.assertEquals(1.0, meterRegistry.counter("cache.rebuild.deduplicated").count());
+    }
+
+    /**
+     * 队列满了直接放弃,不阻塞调用线程
+     */
+    @Test
+    void testRejectWhenFull() throws InterruptedException {
+        blockWorker();
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertTrue(executor.submit("cache:shop:" + i, 1, () -> { }));
+        }
+        Assertions.assertFalse(executor.submit("cache:shop:9", 100, () -> { }));
+        Assertions.assertEquals(3, executor.queueSize());
+        Assertions.assertEquals(1.0, meterRegistry.counter("cache.rebuild.rejected").count());
+    }
+
+    /**
+     * 执行中的key也会去重,执行结束(包括失败)后可以重新提交
+     */
+    @Test
+    void testRunningKeyDedupAndFailure() throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        Assertions.assertTrue(executor.submit("cache:shop:1", 1, () -> {
+            running.countDown();
+            await(release);
+            throw new IllegalStateException("db down");
+        }));
+        Assertions.assertTrue(running.await(5, TimeUnit.SECONDS));
+        Assertions.assertFalse(executor.submit("cache:shop:1", 1, () -> { }));
+
+        release.countDown();
+        CountDownLatch again = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + 5000;
+        //失败的任务结束后才会从pending中移除
+        while (!executor.submit("cache:shop:1", 1, again::countDown)) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline);
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        Assertions.assertTrue(again.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(1.0, meterRegistry.counter("cache.rebuild.failures").count());
+    }
+
+    private static Runnable record(List<String> order, String name, CountDownLatch done) {
+        return () -> {
+            order.add(name);
+            done.countDown();
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+class FeedTimelineTest {
+
+    //ZREVRANGEBYSCORE的顺序:分数倒序,分数相同按成员倒序
+    private static final Comparator<ZSetOperations.TypedTuple<String>> REDIS_ORDER =
+            Comparator.comparing(ZSetOperations.TypedTuple<String>::getScore, Comparator.reverseOrder())
+                    .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+
+    private static ZSetOperations.TypedTuple<String> tuple(String blogId, double time) {
+        return new DefaultTypedTuple<>(blogId, time);
+    }
+
+    //一个来源的ZREVRANGEBYSCORE结果
+    @SafeVarargs
+    private static Set<ZSetOperations.TypedTuple<String>> source(ZSetOperations.TypedTuple<String>... tuples) {
+        List<ZSetOperations.TypedTuple<String>> list = new ArrayList<>(Arrays.asList(tuples));
+        list.sort(REDIS_ORDER);
+        return new LinkedHashSet<>(list);
+    }
+
+    private static List<String> ids(List<ZSetOperations.TypedTuple<String>> page) {
+        return page.stream().map(ZSetOperations.TypedTuple::getValue).collect(Collectors.toList());
+    }
+
+    @Test
+    void testMergeByTimeDescending() {
+        List<Object> sources = Arrays.asList(
+                source(tuple("1", 100), tuple("4", 400), tuple("6", 600)),
+                source(tuple("2", 200), tuple("5", 500)),
+                source(tuple("3", 300)));
+        Assertions.assertEquals(Arrays.asList("6", "5", "4", "3", "2", "1"), ids(FeedTimeline.merge(sources, 0, 10)));
+        Assertions.assertEquals(Arrays.asList("6", "5"), ids(FeedTimeline.merge(sources, 0, 2)));
+        Assertions.assertEquals(Arrays.asList("3", "2"), ids(FeedTimeline.merge(sources, 3, 2)));
+    }
+
+    /**
+     * 时间相同按成员倒序,成员按字符串比较,与redis的字节比较一致
+     */
+    @Test
+    void testTieBreakByMember() {
+        List<Object> sources = Arrays.asList(
+                source(tuple("9", 100)),
+                source(tuple("10", 100), tuple("11", 50)));
+        Assertions.assertEquals(Arrays.asList("9", "10", "11"), ids(FeedTimeline.merge(sources, 0, 10)));
+    }
+
+    /**
+     * 作者变成大V之前推送过的笔记同时在收件箱和发件箱中,只返回一次,也只占一个offset
+     */
+    @Test
+    void testDuplicatesAcrossInboxAndOutbox() {
+        List<Object> sources = Arrays.asList(
+                source(tuple("1", 100), tuple("2", 200), tuple("3", 300)),
+                source(tuple("2", 200), tuple("3", 300), tuple("4", 400)));
+        Assertions.assertEquals(Arrays.asList("4", "3", "2", "1"), ids(FeedTimeline.merge(sources, 0, 10)));
+        Assertions.assertEquals(Arrays.asList("2", "1"), ids(FeedTimeline.merge(sources, 2, 10)));
+    }
+
+    /**
+     * 空的来源和管道返回的null被忽略
+     */
+    @Test
+    void testEmptySources() {
+        Assertions.assertTrue(FeedTimeline.merge(Collections.emptyList(), 0, 10).isEmpty());
+        List<Object> sources = Arrays.asList(Collections.emptySet(), null, source(tuple("1", 100)));
+        Assertions.assertEquals(Collections.singletonList("1"), ids(FeedTimeline.merge(sources, 0, 10)));
+    }
+
+    /**
+     * 随机数据与把所有来源合并成一个zset后LIMIT offset count的结果一致
+     */
+    @Test
+    void testMatchesSingleZSet() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            int sourceCount = 1 + random.nextInt(5);
+            List<Object> sources = new ArrayList<>();
+            TreeSet<ZSetOperations.TypedTuple<String>> union = new TreeSet<>(REDIS_ORDER);
+            for (int s = 0; s < sourceCount; s++) {
+                List<ZSetOperations.TypedTuple<String>> list = new ArrayList<>();
+                for (int i = random.nextInt(20); i > 0; i--) {
+                    //同一篇笔记的时间固定,出现在多个来源时分数相同
+                    int blogId = random.nextInt(40);
+                    list.add(tuple(String.valueOf(blogId), 1000 + blogId % 7));
+                }
+                Set<ZSetOperations.TypedTuple<String>> zset = source(list.toArray(new ZSetOperations.TypedTuple[0]));
+                sources.add(zset);
+                union.addAll(zset);
+            }
+            int offset = random.nextInt(10);
+            int count = 1 + random.nextInt(10);
+            List<String> expected = union.stream().skip(offset).limit(count)
+                    .map(ZSetOperations.TypedTuple::getValue).collect(Collectors.toList());
+            Assertions.assertEquals(expected, ids(FeedTimeline.merge(sources, offset, count)), "round " + round);
+        }
+    }
+}
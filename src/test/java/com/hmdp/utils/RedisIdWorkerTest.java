@@ -0,0 +1,119 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+
+class RedisIdWorkerTest {
+
+    private static final long COUNT_MASK = (1L << 32) - 1;
+
+    //模拟redis的INCRBY计数器,记录申请号段的次数
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate mockRedis() {
+        StringRedisTemplate template = Mockito.mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = Mockito.mock(ValueOperations.class);
+        Mockito.when(template.opsForValue()).thenReturn(ops);
+        Mockito.when(ops.increment(anyString(), anyLong())).thenAnswer(invocation -> {
+            fetches.incrementAndGet();
+            return counters.computeIfAbsent(invocation.getArgument(0), k -> new AtomicLong())
+                    .addAndGet(invocation.getArgument(1));
+        });
+        Mockito.when(ops.increment(anyString())).thenAnswer(invocation -> {
+            fetches.incrementAndGet();
+            return counters.computeIfAbsent(invocation.getArgument(0), k -> new AtomicLong()).incrementAndGet();
+        });
+        return template;
+    }
+
+    /**
+     * 号段依次衔接,序列号连续不跳号,每段只访问一次redis,剩余20%时预取下一段
+     */
+    @Test
+    void testSegmentHandOff() {
+        RedisIdWorker worker = new RedisIdWorker(mockRedis(), new SimpleMeterRegistry(), true, 10);
+        for (long expected = 1; expected <= 35; expected++) {
+            Assertions.assertEquals(expected, worker.nextId("order") & COUNT_MASK);
+        }
+        //[1,10] [11,20] [21,30] [31,40],最后一段在用到38之前已经预取
+        Assertions.assertEquals(4, fetches.get());
+        String today = LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        Assertions.assertEquals(40, counters.get("icr:order:" + today).get());
+    }
+
+    /**
+     * 不同业务前缀各自使用自己的计数器
+     */
+    @Test
+    void testPrefixesIndependent() {
+        RedisIdWorker worker = new RedisIdWorker(mockRedis(), new SimpleMeterRegistry(), true, 100);
+        Assertions.assertEquals(1, worker.nextId("order") & COUNT_MASK);
+        Assertions.assertEquals(1, worker.nextId("blog") & COUNT_MASK);
+        Assertions.assertEquals(2, worker.nextId("order") & COUNT_MASK);
+        Assertions.assertEquals(2, counters.size());
+    }
+
+    /**
+     * 多线程并发切换号段时id不重复,也不浪费号段
+     */
+    @Test
+    void testConcurrentUnique() throws InterruptedException {
+        RedisIdWorker worker = new RedisIdWorker(mockRedis(), new SimpleMeterRegistry(), true, 50);
+        int threads = 8;
+        int perThread = 1000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(threads);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            es.submit(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    ids.add(worker.nextId("order"));
+                }
+                latch.countDown();
+            });
+        }
+        Assertions.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        es.shutdown();
+        Assertions.assertEquals(threads * perThread, ids.size());
+        List<Long> counts = new ArrayList<>();
+        ids.forEach(id -> counts.add(id & COUNT_MASK));
+        //同一天的id序列号恰好是1..8000,没有跳号;最多多预取一段
+        Assertions.assertEquals(threads * perThread, counts.stream().mapToLong(Long::longValue).max().getAsLong());
+        Assertions.assertTrue(fetches.get() <= threads * perThread / 50 + 1);
+    }
+
+    /**
+     * 关闭号段模式时每次INCR
+     */
+    @Test
+    void testSegmentDisabled() {
+        RedisIdWorker worker = new RedisIdWorker(mockRedis(), new SimpleMeterRegistry(), false, 1000);
+        for (long expected = 1; expected <= 5; expected++) {
+            Assertions.assertEquals(expected, worker.nextId("order") & COUNT_MASK);
+        }
+        Assertions.assertEquals(5, fetches.get());
+    }
+}
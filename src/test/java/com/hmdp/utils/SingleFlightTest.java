@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SingleFlightTest {
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 同一个key并发未命中时只加载一次,所有线程拿到同一个结果
+     */
+    @Test
+    void testCoalesceConcurrentMisses() throws Exception {
+        int threads = 16;
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            results.add(es.submit(() -> singleFlight.execute("cache:shop:1", () -> {
+                loads.incrementAndGet();
+                entered.countDown();
+                await(release);
+                return "shop1";
+            })));
+            //第一个线程进入加载后再发起其余请求,保证它们都在等待同一次加载
+            Assertions.assertTrue(entered.await(5, TimeUnit.SECONDS));
+            CountDownLatch started = new CountDownLatch(threads - 1);
+            for (int i = 1; i < threads; i++) {
+                results.add(es.submit(() -> {
+                    started.countDown();
+                    return singleFlight.execute("cache:shop:1", () -> {
+                        loads.incrementAndGet();
+                        return "other";
+                    });
+                }));
+            }
+            Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+            //等其余线程进入等待后再完成加载
+            TimeUnit.MILLISECONDS.sleep(200);
+            Assertions.assertEquals(1, singleFlight.inFlight());
+            release.countDown();
+            for (Future<Object> result : results) {
+                Assertions.assertEquals("shop1", result.get(5, TimeUnit.SECONDS));
+            }
+            Assertions.assertEquals(1, loads.get());
+            Assertions.assertEquals(0, singleFlight.inFlight());
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    /**
+     * 不同的key互不等待
+     */
+    @Test
+    void testDifferentKeysLoadIndependently() {
+        String outer = singleFlight.execute("a", () -> singleFlight.execute("b", () -> "b") + "a");
+        Assertions.assertEquals("ba", outer);
+        Assertions.assertEquals(0, singleFlight.inFlight());
+    }
+
+    /**
+     * 加载结束后不缓存结果,下一次未命中重新加载;null也是合法的结果
+     */
+    @Test
+    void testNoResultCachedAfterCompletion() {
+        AtomicInteger loads = new AtomicInteger();
+        Assertions.assertNull(singleFlight.execute("k", () -> {
+            loads.incrementAndGet();
+            return null;
+        }));
+        Assertions.assertEquals(2, (int) singleFlight.execute("k", loads::incrementAndGet));
+    }
+
+    /**
+     * 加载失败时等待的线程收到原始异常,之后的请求可以重新加载
+     */
+    @Test
+    void testFailurePropagatesToWaiters() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> leader = es.submit(() -> singleFlight.execute("k", () -> {
+                entered.countDown();
+                await(release);
+                throw new IllegalStateException("db down");
+            }));
+            Assertions.assertTrue(entered.await(5, TimeUnit.SECONDS));
+            Future<Object> waiter = es.submit(() -> singleFlight.execute("k", () -> "unused"));
+            //等待者进入等待后再让加载失败
+            TimeUnit.MILLISECONDS.sleep(100);
+            release.countDown();
+            for (Future<Object> f : new Future[]{leader, waiter}) {
+                Exception e = Assertions.assertThrows(Exception.class, () -> f.get(5, TimeUnit.SECONDS));
+                Assertions.assertTrue(e.getCause() instanceof IllegalStateException);
+                Assertions.assertEquals("db down", e.getCause().getMessage());
+            }
+            Assertions.assertEquals("ok", singleFlight.execute("k", () -> "ok"));
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+
+class SnowflakeIdWorkerTest {
+
+    /**
+     * 雪花id和redis id不重复:最小的雪花id大于RedisIdWorker能生成的最大id
+     */
+    @Test
+    void testIdSpacesDisjoint() {
+        long maxRedisId = RedisIdWorker.compose(RedisIdWorker.MAX_TIMESTAMP, (1L << 32) - 1);
+        long minSnowflakeId = SnowflakeIdWorker.compose(0, 0, 0);
+        Assertions.assertEquals(SnowflakeIdWorker.SNOWFLAKE_FLAG - 1, maxRedisId);
+        Assertions.assertEquals(SnowflakeIdWorker.SNOWFLAKE_FLAG, minSnowflakeId);
+        Assertions.assertTrue(maxRedisId < minSnowflakeId);
+        //最大的雪花id仍然是正数
+        Assertions.assertTrue(SnowflakeIdWorker.compose((1L << 40) - 1, 1023, 4095) > 0);
+    }
+
+    @Test
+    void testNextIdHasFlag() {
+        SnowflakeIdWorker worker = newWorker();
+        long id = worker.nextId("order");
+        Assertions.assertEquals(SnowflakeIdWorker.SNOWFLAKE_FLAG, id & SnowflakeIdWorker.SNOWFLAKE_FLAG);
+        Assertions.assertTrue(id > RedisIdWorker.compose(RedisIdWorker.MAX_TIMESTAMP, (1L << 32) - 1));
+    }
+
+    private static final long SEQUENCE_MASK = (1L << 12) - 1;
+
+    //2026-01-01 00:00:00 UTC
+    private final AtomicLong clock = new AtomicLong(1767225600000L);
+
+    /**
+     * 同一毫秒内序列号递增,跨毫秒后从0开始
+     */
+    @Test
+    void testSequenceWithinMillisecond() {
+        SnowflakeIdWorker worker = newWorker(clock);
+        long first = worker.nextId("order");
+        long second = worker.nextId("order");
+        Assertions.assertEquals(first + 1, second);
+        clock.incrementAndGet();
+        long third = worker.nextId("order");
+        Assertions.assertEquals(0, third & SEQUENCE_MASK);
+        Assertions.assertEquals(timestampOf(first) + 1, timestampOf(third));
+    }
+
+    /**
+     * 小幅回拨时沿用上一次的时间戳继续递增,id仍然单调递增
+     */
+    @Test
+    void testSmallClockRollback() {
+        SnowflakeIdWorker worker = newWorker(clock);
+        long before = worker.nextId("order");
+        clock.addAndGet(-1000);
+        long after = worker.nextId("order");
+        Assertions.assertEquals(before + 1, after);
+        Assertions.assertEquals(timestampOf(before), timestampOf(after));
+    }
+
+    /**
+     * 回拨超过max-backward-millis时拒绝生成,时钟追上后恢复
+     */
+    @Test
+    void testLargeClockRollbackRejected() {
+        SnowflakeIdWorker worker = newWorker(clock);
+        long before = worker.nextId("order");
+        clock.addAndGet(-5001);
+        IllegalStateException e = Assertions.assertThrows(IllegalStateException.class, () -> worker.nextId("order"));
+        Assertions.assertTrue(e.getMessage().startsWith("时钟回拨"));
+        clock.addAndGet(5002);
+        Assertions.assertTrue(worker.nextId("order") > before);
+    }
+
+    /**
+     * 一毫秒的4096个序列号用完后等待时钟走到下一毫秒,不借用未来的时间戳
+     */
+    @Test
+    void testSequenceExhaustedWaitsForNextMillisecond() throws Exception {
+        SnowflakeIdWorker worker = newWorker(clock);
+        long last = 0;
+        for (int i = 0; i <= SEQUENCE_MASK; i++) {
+            last = worker.nextId("order");
+        }
+        Assertions.assertEquals(SEQUENCE_MASK, last & SEQUENCE_MASK);
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ticker.schedule(() -> clock.incrementAndGet(), 20, TimeUnit.MILLISECONDS);
+            long next = worker.nextId("order");
+            Assertions.assertEquals(timestampOf(last) + 1, timestampOf(next));
+            Assertions.assertEquals(0, next & SEQUENCE_MASK);
+        } finally {
+            ticker.shutdownNow();
+        }
+    }
+
+    /**
+     * 时钟一直不走,累计等待超过max-wait-millis后失败,不会无限等待
+     */
+    @Test
+    void testSequenceExhaustedFailsAfterMaxWait() {
+        SnowflakeIdWorker worker = newWorker(clock);
+        for (int i = 0; i <= SEQUENCE_MASK; i++) {
+            worker.nextId("order");
+        }
+        long start = System.nanoTime();
+        IllegalStateException e = Assertions.assertThrows(IllegalStateException.class, () -> worker.nextId("order"));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assertions.assertTrue(e.getMessage().startsWith("序列号用完"));
+        Assertions.assertTrue(elapsedMillis >= 100 && elapsedMillis < 5000, "elapsed=" + elapsedMillis);
+    }
+
+    /**
+     * 租约过期后拒绝生成,避免和拿到同一个机器id的节点重复
+     */
+    @Test
+    void testExpiredLeaseRejected() {
+        SnowflakeIdWorker worker = newWorker(clock);
+        worker.nextId("order");
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(60));
+        IllegalStateException e = Assertions.assertThrows(IllegalStateException.class, () -> worker.nextId("order"));
+        Assertions.assertEquals("机器id租约已过期", e.getMessage());
+    }
+
+    private static long timestampOf(long id) {
+        return (id & ~SnowflakeIdWorker.SNOWFLAKE_FLAG) >>> 22;
+    }
+
+    //redis只用于租用机器id,mock成总是租用成功
+    @SuppressWarnings("unchecked")
+    static StringRedisTemplate mockRedis() {
+        StringRedisTemplate template = Mockito.mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = Mockito.mock(ValueOperations.class);
+        Mockito.when(template.opsForValue()).thenReturn(ops);
+        Mockito.when(ops.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.SECONDS))).thenReturn(true);
+        return template;
+    }
+
+    private static SnowflakeIdWorker newWorker() {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(mockRedis(), 60, 10000, 5000, 100);
+        worker.init();
+        return worker;
+    }
+
+    //使用可控时钟的生成器,租约60秒,最多回拨5000毫秒,最多等待100毫秒
+    private static SnowflakeIdWorker newWorker(AtomicLong clock) {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(mockRedis(), 60, 10000, 5000, 100) {
+            @Override
+            long currentTimeMillis() {
+                return clock.get();
+            }
+        };
+        worker.init();
+        return worker;
+    }
+}